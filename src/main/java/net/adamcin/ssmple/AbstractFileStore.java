@@ -48,6 +48,36 @@ abstract class AbstractFileStore implements FileStore {
 		return file;
 	}
 
+	/**
+	 * Lock the file against other ssmple processes. Hold a shared lock around {@link #load()}, and an exclusive lock
+	 * around a load, merge and {@link #save()}, so that concurrent syncs of one file don't lose each other's keys.
+	 *
+	 * @param shared        true for a read lock
+	 * @param timeoutMillis most milliseconds to wait
+	 * @return the held lock, to be closed when done
+	 * @throws IOException if the lock can't be taken in time
+	 */
+	@Override
+	public FileStoreLock lock(final boolean shared, final long timeoutMillis) throws IOException {
+		return FileStoreLock.acquire(getFile(), shared, timeoutMillis);
+	}
+
+	/**
+	 * Store a decrypted SecureString value. Stores that can write straight from the buffer override this to keep it
+	 * until {@link #save()} and clear it there, and the rest copy it to a String and clear it right away.
+	 *
+	 * @param key   the key
+	 * @param value the value, which this store now owns
+	 */
+	@Override
+	public void putSecret(final String key, final SecretBuffer value) {
+		try {
+			putParam(key, value.toString());
+		} finally {
+			value.clear();
+		}
+	}
+
 	final void assertFileIsReadable() throws IOException {
 		if (getFile().exists()) {
 			if (getFile().isDirectory() || !getFile().canRead()) {
@@ -61,6 +91,9 @@ abstract class AbstractFileStore implements FileStore {
 			if (getFile().isDirectory() || !getFile().canWrite()) {
 				throw new IOException("File exists but is not writable: " + getFile().getAbsolutePath());
 			}
+		} else if (!getFile().getAbsoluteFile().getParentFile().isDirectory()
+				&& !getFile().getAbsoluteFile().getParentFile().mkdirs()) {
+			throw new IOException("Directory could not be created: " + getFile().getAbsoluteFile().getParent());
 		} else if (!getFile().createNewFile()) {
 			throw new IOException("File could not be created: " + getFile().getAbsolutePath());
 		}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Keeps SSM clients between runs of a resident server, so that a run with the same region, profile and transport
+ * settings as an earlier one reuses its pooled connections, credentials and KMS alias list. Entries are rebuilt after
+ * a time to live, which bounds how long a new KMS alias or rotated credential file can go unnoticed.
+ */
+final class ClientCache {
+
+	/**
+	 * How long a cached client and its alias list are reused.
+	 */
+	static final long DEFAULT_TTL_MILLIS = 300000L;
+
+	private static final class Entry {
+		private final SsmpleClient client;
+
+		private final long expiresAt;
+
+		private int users;
+
+		private boolean retired;
+
+		private Entry(final SsmpleClient client, final long expiresAt) {
+			this.client = client;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final long ttlMillis;
+
+	private final Map<String, Entry> entries = new HashMap<>();
+
+	private final Map<SsmpleClient, Entry> leased = new IdentityHashMap<>();
+
+	ClientCache(final long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Lease the cached client for the settings, or create one. The caller should use a copy with its own executor,
+	 * since the executor of the cached client belongs to the run that created it, and must {@link #release} the
+	 * client when the run ends.
+	 *
+	 * @param key     the settings that went into building the client
+	 * @param factory creates the client when none is cached, or the cached one expired
+	 * @return the client
+	 */
+	synchronized SsmpleClient acquire(final String key, final Supplier<SsmpleClient> factory) {
+		final long now = System.currentTimeMillis();
+		Entry entry = entries.get(key);
+		if (entry == null || entry.expiresAt <= now) {
+			if (entry != null) {
+				// runs still using the expired client keep it until they release it.
+				retire(entry);
+			}
+			entry = new Entry(factory.get(), now + ttlMillis);
+			entries.put(key, entry);
+		}
+		entry.users++;
+		leased.put(entry.client, entry);
+		return entry.client;
+	}
+
+	/**
+	 * End a lease from {@link #acquire}.
+	 *
+	 * @param client the leased client
+	 */
+	synchronized void release(final SsmpleClient client) {
+		final Entry entry = leased.get(client);
+		if (entry != null && --entry.users == 0) {
+			leased.remove(client);
+			if (entry.retired) {
+				shutdown(entry.client);
+			}
+		}
+	}
+
+	private void retire(final Entry entry) {
+		entry.retired = true;
+		if (entry.users == 0) {
+			shutdown(entry.client);
+		}
+	}
+
+	private static void shutdown(final SsmpleClient client) {
+		client.getSsm().shutdown();
+		if (client.getKms() != null) {
+			client.getKms().shutdown();
+		}
+	}
+}
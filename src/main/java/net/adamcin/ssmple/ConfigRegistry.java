@@ -0,0 +1,343 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package net.adamcin.ssmple;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the parsed contents of synced config files in memory and reloads them when they change on disk.
+ * <p>
+ * Each reload publishes a new immutable {@link Snapshot}. Readers on any thread see either the old or the new
+ * snapshot, never a mix, and {@link #get(String, String)} neither locks nor allocates. Only files that changed are
+ * parsed again; the others are shared with the previous snapshot.
+ * <pre>
+ * ConfigRegistry registry = new ConfigRegistry(new File("/ep/conf"), Arrays.asList("ep.properties"));
+ * registry.addListener((previous, current, changed) -&gt; reconfigure(current));
+ * registry.addErrorListener((filename, cause) -&gt; log.warn("config reload failed: " + filename, cause));
+ * registry.start();
+ * String url = registry.get("ep.properties", "db.url");
+ * </pre>
+ */
+public final class ConfigRegistry implements Closeable {
+
+	/**
+	 * How long to wait after the last filesystem event before parsing, so that a file being saved is read whole.
+	 */
+	public static final long DEFAULT_SETTLE_MILLIS = 100L;
+
+	/**
+	 * Notified on the watcher thread after a new snapshot is published.
+	 */
+	public interface Listener {
+		/**
+		 * Called after a reload.
+		 *
+		 * @param previous the replaced snapshot
+		 * @param current  the published snapshot
+		 * @param changed  the file names whose bindings changed
+		 */
+		void onChange(Snapshot previous, Snapshot current, Set<String> changed);
+	}
+
+	/**
+	 * Notified on the watcher thread when a file can't be reloaded, in which case its last good bindings stay
+	 * published, or when a {@link Listener} throws. Without one, such failures are ignored.
+	 */
+	public interface ErrorListener {
+		/**
+		 * Called after a failure.
+		 *
+		 * @param filename the file that failed to reload, or null if a listener failed
+		 * @param cause    the failure
+		 */
+		void onError(String filename, Exception cause);
+	}
+
+	/**
+	 * Immutable bindings for every registered file at one point in time.
+	 */
+	public static final class Snapshot {
+		private final Map<String, Map<String, String>> files;
+
+		private Snapshot(final Map<String, Map<String, String>> files) {
+			this.files = files;
+		}
+
+		/**
+		 * Look up one value.
+		 *
+		 * @param filename the registered file name
+		 * @param key      the key
+		 * @return the value, or null if the file or key is absent
+		 */
+		public String get(final String filename, final String key) {
+			final Map<String, String> bindings = files.get(filename);
+			return bindings != null ? bindings.get(key) : null;
+		}
+
+		/**
+		 * Get all bindings for a file.
+		 *
+		 * @param filename the registered file name
+		 * @return unmodifiable bindings, empty if the file is absent
+		 */
+		public Map<String, String> getFile(final String filename) {
+			return files.getOrDefault(filename, Collections.emptyMap());
+		}
+
+		/**
+		 * Get the registered file names.
+		 *
+		 * @return unmodifiable file names
+		 */
+		public Set<String> getFilenames() {
+			return files.keySet();
+		}
+	}
+
+	private final File confDir;
+
+	private final List<String> filenames;
+
+	private final long settleMillis;
+
+	private final AtomicReference<Snapshot> current = new AtomicReference<>(
+			new Snapshot(Collections.emptyMap()));
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	private final List<ErrorListener> errorListeners = new CopyOnWriteArrayList<>();
+
+	private WatchService watchService;
+
+	private Thread watcher;
+
+	/**
+	 * Create a registry for files relative to a conf directory.
+	 *
+	 * @param confDir   the conf directory, as for {@code -C}
+	 * @param filenames file names relative to the conf directory, as for {@code -f}
+	 */
+	public ConfigRegistry(final File confDir, final Collection<String> filenames) {
+		this(confDir, filenames, DEFAULT_SETTLE_MILLIS);
+	}
+
+	/**
+	 * Create a registry for files relative to a conf directory.
+	 *
+	 * @param confDir      the conf directory, as for {@code -C}
+	 * @param filenames    file names relative to the conf directory, as for {@code -f}
+	 * @param settleMillis quiet period after a change before files are parsed
+	 */
+	public ConfigRegistry(final File confDir, final Collection<String> filenames, final long settleMillis) {
+		this.confDir = confDir;
+		this.filenames = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(filenames)));
+		this.settleMillis = settleMillis;
+	}
+
+	/**
+	 * Load every file and start watching for changes.
+	 *
+	 * @throws IOException if a file can't be parsed or the directory can't be watched
+	 */
+	public synchronized void start() throws IOException {
+		if (watcher != null) {
+			throw new IllegalStateException("registry is already started");
+		}
+		final Map<String, Map<String, String>> files = new LinkedHashMap<>();
+		for (String filename : filenames) {
+			files.put(filename, parse(filename));
+		}
+		current.set(new Snapshot(Collections.unmodifiableMap(files)));
+
+		watchService = FileSystems.getDefault().newWatchService();
+		final Set<Path> dirs = new LinkedHashSet<>();
+		for (String filename : filenames) {
+			dirs.add(new File(confDir, filename).getAbsoluteFile().getParentFile().toPath());
+		}
+		for (Path dir : dirs) {
+			dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+		}
+		watcher = new Thread(this::watch, "ssmple-config-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Get the current snapshot. Hold on to it to read several values consistently.
+	 *
+	 * @return the current snapshot
+	 */
+	public Snapshot snapshot() {
+		return current.get();
+	}
+
+	/**
+	 * Look up one value in the current snapshot.
+	 *
+	 * @param filename the registered file name
+	 * @param key      the key
+	 * @return the value, or null if the file or key is absent
+	 */
+	public String get(final String filename, final String key) {
+		return current.get().get(filename, key);
+	}
+
+	public void addListener(final Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(final Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public void addErrorListener(final ErrorListener errorListener) {
+		errorListeners.add(errorListener);
+	}
+
+	public void removeErrorListener(final ErrorListener errorListener) {
+		errorListeners.remove(errorListener);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+		}
+		if (watcher != null) {
+			watcher.interrupt();
+		}
+	}
+
+	private Map<String, String> parse(final String filename) throws IOException {
+		final FileStore store = AbstractFileStore.getStore(confDir, filename);
+		final FileStoreLock lock = store.lock(true, FileStoreLock.DEFAULT_TIMEOUT_MILLIS);
+		try {
+			store.load();
+		} finally {
+			lock.close();
+		}
+		final Map<String, String> bindings = new HashMap<>();
+		for (String key : store.getKeys()) {
+			store.getValue(key).ifPresent(value -> bindings.put(key, value));
+		}
+		return Collections.unmodifiableMap(bindings);
+	}
+
+	private void watch() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final Set<String> touched = new LinkedHashSet<>();
+				WatchKey key = watchService.take();
+				// keep collecting until the directory has been quiet for the settle period.
+				while (key != null) {
+					collect(key, touched);
+					key = watchService.poll(settleMillis, TimeUnit.MILLISECONDS);
+				}
+				if (!touched.isEmpty()) {
+					reload(touched);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// closed by close()
+		}
+	}
+
+	private void collect(final WatchKey key, final Set<String> touched) {
+		final Path dir = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				touched.addAll(filenames);
+				continue;
+			}
+			final File changed = dir.resolve((Path) event.context()).toFile();
+			for (String filename : filenames) {
+				if (new File(confDir, filename).getAbsoluteFile().equals(changed.getAbsoluteFile())) {
+					touched.add(filename);
+				}
+			}
+		}
+		key.reset();
+	}
+
+	private void reload(final Set<String> touched) {
+		final Snapshot previous = current.get();
+		final Map<String, Map<String, String>> files = new LinkedHashMap<>(previous.files);
+		final Set<String> changed = new LinkedHashSet<>();
+		for (String filename : touched) {
+			try {
+				final Map<String, String> bindings = parse(filename);
+				if (!bindings.equals(previous.getFile(filename))) {
+					files.put(filename, bindings);
+					changed.add(filename);
+				}
+			} catch (IOException | RuntimeException e) {
+				// keep the last good bindings, and try again on the next change.
+				fireError(filename, e);
+			}
+		}
+		if (changed.isEmpty()) {
+			return;
+		}
+		final Snapshot next = new Snapshot(Collections.unmodifiableMap(files));
+		current.set(next);
+		final Set<String> changedView = Collections.unmodifiableSet(changed);
+		for (Listener listener : listeners) {
+			try {
+				listener.onChange(previous, next, changedView);
+			} catch (RuntimeException e) {
+				fireError(null, e);
+			}
+		}
+	}
+
+	private void fireError(final String filename, final Exception cause) {
+		for (ErrorListener errorListener : errorListeners) {
+			try {
+				errorListener.onError(filename, cause);
+			} catch (RuntimeException e) {
+				// a failing error listener must not stop the watcher.
+			}
+		}
+	}
+}
@@ -30,9 +30,13 @@ interface FileStore {
 
 	void save() throws IOException;
 
+	FileStoreLock lock(final boolean shared, final long timeoutMillis) throws IOException;
+
 	Set<String> getKeys();
 
 	Optional<String> getValue(final String key);
 
 	void putParam(final String key, final String value);
+
+	void putSecret(final String key, final SecretBuffer value);
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A cross-process lock on one config file, held on a hidden sidecar named {@code .<name>.lock} in the same directory.
+ * The config file itself is not locked, since saving it truncates and rewrites it, and on some platforms a locked
+ * file can't be replaced. Lock files are left in place, because deleting one would race with the next process to
+ * open it.
+ */
+final class FileStoreLock implements Closeable {
+
+	/**
+	 * How long to wait for a lock before giving up, which is longer than any one sync should hold it.
+	 */
+	static final long DEFAULT_TIMEOUT_MILLIS = 30000L;
+
+	/**
+	 * How long to wait between attempts to take a contended lock.
+	 */
+	private static final long RETRY_MILLIS = 50L;
+
+	private static final FileStoreLock UNLOCKED = new FileStoreLock(null, null);
+
+	private final FileChannel channel;
+
+	private final FileLock lock;
+
+	private FileStoreLock(final FileChannel channel, final FileLock lock) {
+		this.channel = channel;
+		this.lock = lock;
+	}
+
+	/**
+	 * Take the lock for a config file, waiting up to the timeout while another process or thread holds it.
+	 *
+	 * @param file          the config file
+	 * @param shared        true for a read lock, which other readers may also hold
+	 * @param timeoutMillis most milliseconds to wait
+	 * @return the held lock, to be closed when done
+	 * @throws IOException if the lock can't be taken in time
+	 */
+	static FileStoreLock acquire(final File file, final boolean shared, final long timeoutMillis) throws IOException {
+		final File lockFile = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".lock");
+		if (!shared && !lockFile.getParentFile().isDirectory() && !lockFile.getParentFile().mkdirs()) {
+			throw new IOException("Directory could not be created: " + lockFile.getParent());
+		}
+		final FileChannel channel;
+		try {
+			channel = FileChannel.open(lockFile.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (AccessDeniedException | NoSuchFileException e) {
+			// a reader that can't create the lock file has nothing to read, or no writer could have saved it here.
+			if (shared) {
+				return UNLOCKED;
+			}
+			throw e;
+		}
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			while (true) {
+				FileLock lock;
+				try {
+					lock = channel.tryLock(0L, Long.MAX_VALUE, shared);
+				} catch (OverlappingFileLockException e) {
+					// held by another thread in this process, which the OS doesn't distinguish from us.
+					lock = null;
+				}
+				if (lock != null) {
+					return new FileStoreLock(channel, lock);
+				}
+				if (System.currentTimeMillis() >= deadline) {
+					throw new IOException(String.format("Timed out after %d ms waiting for lock on %s",
+							timeoutMillis, file.getAbsolutePath()));
+				}
+				Thread.sleep(RETRY_MILLIS);
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		} catch (InterruptedException e) {
+			channel.close();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for lock on " + file.getAbsolutePath(), e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			try {
+				lock.release();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package net.adamcin.ssmple;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest helpers for comparing parameter values without keeping or printing the values themselves.
+ */
+final class Hashes {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private Hashes() {
+		// no instances
+	}
+
+	/**
+	 * Hash a sequence of strings, with each part delimited so that ("ab", "c") and ("a", "bc") differ.
+	 *
+	 * @param parts the strings to hash, where null is treated as empty
+	 * @return a hex-encoded SHA-256 digest
+	 */
+	static String sha256Hex(final String... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String part : parts) {
+				if (part != null) {
+					digest.update(part.getBytes(UTF_8));
+				}
+				digest.update((byte) 0);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest()) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+}
@@ -21,20 +21,33 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
 
 class JavaPropertiesFileStore extends AbstractFileStore {
 
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
 	private final Properties properties = new Properties();
 
+	/**
+	 * Secrets are kept out of the Properties, which can only hold Strings, and appended after it on save.
+	 */
+	private final Map<String, SecretBuffer> secrets = new LinkedHashMap<>();
+
 	JavaPropertiesFileStore(final File file) {
 		super(file);
 	}
 
 	@Override
 	public void load() throws IOException {
+		clearSecrets();
 		properties.clear();
 		if (getFile().exists()) {
 			assertFileIsReadable();
@@ -49,21 +62,134 @@ class JavaPropertiesFileStore extends AbstractFileStore {
 		assertFileIsWritable();
 		try (FileOutputStream fos = new FileOutputStream(getFile())) {
 			properties.store(fos, "Saved from SSM");
+			for (Map.Entry<String, SecretBuffer> secret : secrets.entrySet()) {
+				writeSecret(fos, secret.getKey(), secret.getValue().getChars());
+			}
+		} finally {
+			clearSecrets();
 		}
 	}
 
 	@Override
 	public Set<String> getKeys() {
-		return properties.stringPropertyNames();
+		if (secrets.isEmpty()) {
+			return properties.stringPropertyNames();
+		}
+		final Set<String> keys = new LinkedHashSet<>(properties.stringPropertyNames());
+		keys.addAll(secrets.keySet());
+		return keys;
 	}
 
 	@Override
 	public Optional<String> getValue(final String key) {
+		if (secrets.containsKey(key)) {
+			return Optional.of(secrets.get(key).toString());
+		}
 		return Optional.ofNullable(properties.getProperty(key));
 	}
 
 	@Override
 	public void putParam(final String key, final String value) {
+		clearSecret(secrets.remove(key));
 		properties.setProperty(key, value);
 	}
+
+	@Override
+	public void putSecret(final String key, final SecretBuffer value) {
+		properties.remove(key);
+		clearSecret(secrets.put(key, value));
+	}
+
+	/**
+	 * Zero and forget any secrets, which are only kept until the next save.
+	 */
+	private void clearSecrets() {
+		secrets.values().forEach(SecretBuffer::clear);
+		secrets.clear();
+	}
+
+	private static void clearSecret(final SecretBuffer replaced) {
+		if (replaced != null) {
+			replaced.clear();
+		}
+	}
+
+	/**
+	 * Append one property line, escaped as {@link Properties#store(OutputStream, String)} would, without making a
+	 * String of the value. The line is encoded into a local array that is zeroed after it is written.
+	 */
+	private static void writeSecret(final OutputStream out, final String key, final char[] value) throws IOException {
+		final String separator = System.lineSeparator();
+		// each character escapes to at most six bytes, like a unicode escape.
+		final byte[] line = new byte[(key.length() + value.length) * 6 + 1 + separator.length()];
+		try {
+			int pos = escape(key.toCharArray(), true, line, 0);
+			line[pos++] = '=';
+			pos = escape(value, false, line, pos);
+			for (int i = 0; i < separator.length(); i++) {
+				line[pos++] = (byte) separator.charAt(i);
+			}
+			out.write(line, 0, pos);
+		} finally {
+			Arrays.fill(line, (byte) 0);
+		}
+	}
+
+	private static int escape(final char[] chars, final boolean isKey, final byte[] out, final int offset) {
+		int pos = offset;
+		for (int i = 0; i < chars.length; i++) {
+			final char c = chars[i];
+			if (c > 61 && c < 127) {
+				if (c == '\\') {
+					out[pos++] = '\\';
+				}
+				out[pos++] = (byte) c;
+				continue;
+			}
+			switch (c) {
+			case ' ':
+				if (i == 0 || isKey) {
+					out[pos++] = '\\';
+				}
+				out[pos++] = ' ';
+				break;
+			case '\t':
+				pos = escapeLetter('t', out, pos);
+				break;
+			case '\n':
+				pos = escapeLetter('n', out, pos);
+				break;
+			case '\r':
+				pos = escapeLetter('r', out, pos);
+				break;
+			case '\f':
+				pos = escapeLetter('f', out, pos);
+				break;
+			case '=':
+			case ':':
+			case '#':
+			case '!':
+				pos = escapeLetter(c, out, pos);
+				break;
+			default:
+				if (c < 0x0020 || c > 0x007e) {
+					out[pos++] = '\\';
+					out[pos++] = 'u';
+					out[pos++] = (byte) HEX_DIGITS[(c >> 12) & 0xF];
+					out[pos++] = (byte) HEX_DIGITS[(c >> 8) & 0xF];
+					out[pos++] = (byte) HEX_DIGITS[(c >> 4) & 0xF];
+					out[pos++] = (byte) HEX_DIGITS[c & 0xF];
+				} else {
+					out[pos++] = (byte) c;
+				}
+			}
+		}
+		return pos;
+	}
+
+	private static int escapeLetter(final char letter, final byte[] out, final int offset) {
+		out[offset] = '\\';
+		out[offset + 1] = (byte) letter;
+		return offset + 2;
+	}
 }
@@ -25,11 +25,12 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 
 class JsonFileStore extends AbstractFileStore {
-	private Map<String, String> bindings = new LinkedHashMap<>();
+	private Map<String, CharSequence> bindings = new LinkedHashMap<>();
 
 	JsonFileStore(final File file) {
 		super(file);
@@ -39,6 +40,7 @@ class JsonFileStore extends AbstractFileStore {
 	public void load() throws IOException {
 		if (getFile().exists()) {
 			assertFileIsReadable();
+			clearSecrets();
 			bindings.clear();
 			Map<?, ?> untypedMap = new ObjectMapper().readValue(getFile(), LinkedHashMap.class);
 			for (Map.Entry<?, ?> untypedEntry : untypedMap.entrySet()) {
@@ -50,9 +52,33 @@ class JsonFileStore extends AbstractFileStore {
 	@Override
 	public void save() throws IOException {
 		assertFileIsWritable();
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.enable(SerializationFeature.INDENT_OUTPUT);
-		mapper.writeValue(getFile(), bindings);
+		// streamed rather than mapped, so that secrets are written from their buffers.
+		try (JsonGenerator generator = new ObjectMapper().getFactory().createGenerator(getFile(), JsonEncoding.UTF8)) {
+			generator.useDefaultPrettyPrinter();
+			generator.writeStartObject();
+			for (Map.Entry<String, CharSequence> entry : bindings.entrySet()) {
+				generator.writeFieldName(entry.getKey());
+				if (entry.getValue() instanceof SecretBuffer) {
+					final char[] chars = ((SecretBuffer) entry.getValue()).getChars();
+					generator.writeString(chars, 0, chars.length);
+				} else {
+					generator.writeString(entry.getValue().toString());
+				}
+			}
+			generator.writeEndObject();
+		} finally {
+			clearSecrets();
+		}
+	}
+
+	/**
+	 * Zero and forget any secrets, which are only kept until the next save.
+	 */
+	private void clearSecrets() {
+		bindings.values().removeIf(value -> {
+			clearSecret(value);
+			return value instanceof SecretBuffer;
+		});
 	}
 
 	@Override
@@ -62,11 +88,22 @@ class JsonFileStore extends AbstractFileStore {
 
 	@Override
 	public Optional<String> getValue(final String key) {
-		return Optional.ofNullable(bindings.get(key));
+		return Optional.ofNullable(bindings.get(key)).map(CharSequence::toString);
 	}
 
 	@Override
 	public void putParam(final String key, final String value) {
-		bindings.put(key, value);
+		clearSecret(bindings.put(key, value));
+	}
+
+	@Override
+	public void putSecret(final String key, final SecretBuffer value) {
+		clearSecret(bindings.put(key, value));
+	}
+
+	private static void clearSecret(final CharSequence replaced) {
+		if (replaced instanceof SecretBuffer) {
+			((SecretBuffer) replaced).clear();
+		}
 	}
 }
@@ -17,95 +17,93 @@
 
 package net.adamcin.ssmple;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSCredentialsProviderChain;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
-import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.auth.EC2ContainerCredentialsProviderWrapper;
+import com.amazonaws.auth.EnvironmentVariableCredentialsProvider;
+import com.amazonaws.auth.SystemPropertiesCredentialsProvider;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.regions.AwsEnvVarOverrideRegionProvider;
+import com.amazonaws.regions.AwsProfileRegionProvider;
 import com.amazonaws.services.kms.AWSKMSClientBuilder;
-import com.amazonaws.services.kms.model.AliasListEntry;
-import com.amazonaws.services.kms.model.ListAliasesResult;
 import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagement;
 import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagementClientBuilder;
 import com.amazonaws.services.simplesystemsmanagement.model.DeleteParametersRequest;
 import com.amazonaws.services.simplesystemsmanagement.model.DescribeParametersRequest;
 import com.amazonaws.services.simplesystemsmanagement.model.DescribeParametersResult;
-import com.amazonaws.services.simplesystemsmanagement.model.GetParametersByPathRequest;
-import com.amazonaws.services.simplesystemsmanagement.model.GetParametersByPathResult;
 import com.amazonaws.services.simplesystemsmanagement.model.Parameter;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterMetadata;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterTier;
 import com.amazonaws.services.simplesystemsmanagement.model.ParameterType;
-import com.amazonaws.services.simplesystemsmanagement.model.ParametersFilter;
-import com.amazonaws.services.simplesystemsmanagement.model.ParametersFilterKey;
 import com.amazonaws.services.simplesystemsmanagement.model.PutParameterRequest;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * Selects properties from SSM and syncs values to .properties files on the filesystem.
  */
 class Main {
 	/**
-	 * Property Key / Param Name suffix used for serializing KMS key IDs alongside SecureString values.
-	 */
-	static final String KEY_ID_SUFFIX = "_SecureStringKeyId";
-
-	/**
-	 * Turns out this can be between 1 and 10. I'm so glad I made it a parameter.
+	 * I think the current directory is the right default here.
 	 */
-	static final int DEFAULT_MAX_RESULTS = 10;
+	static final String DEFAULT_CONF_DIR = ".";
 
 	/**
-	 * I think the current directory is the right default here.
+	 * Number of concurrent SSM requests, which stays well under the default client connection pool size.
 	 */
-	static final String DEFAULT_CONF_DIR = ".";
+	static final int DEFAULT_PARALLELISM = 8;
 
 	/**
-	 * Build an SSM parameter path or name.
-	 *
-	 * @param pathPrefix hierarchy levels 0-(N-2)
-	 * @param filename   hierarchy level N-1 (.properties, .json, or .yaml extensions will be stripped)
-	 * @param key        optional, hierarchy level N
-	 * @return /-delimited parameter path.
+	 * Pending puts per pipeline lane, enough to keep a lane busy while the next page is fetched.
 	 */
-	static String buildParameterPath(final String pathPrefix, final String filename, final String key) {
-		StringBuilder sb = new StringBuilder();
-		if (pathPrefix != null) {
-			sb.append(pathPrefix);
-		}
-		if (!sb.toString().endsWith("/")) {
-			sb.append("/");
-		}
-		if (filename == null) {
-			sb.append("$");
-		} else if (filename.contains(".")) {
-			sb.append(filename.substring(0, filename.lastIndexOf(".")));
-		} else {
-			sb.append(filename);
-		}
-		if (key != null && !key.isEmpty()) {
-			if (!sb.toString().endsWith("/")) {
-				sb.append("/");
-			}
-			sb.append(key);
-		}
-		return sb.toString();
-	}
+	static final int DEFAULT_PUT_QUEUE_DEPTH = 20;
 
 	/**
 	 * Operation to be performed.
 	 */
 	private enum SsmCmd {
-		GET, PUT, DELETE, CLEAR
+		GET, PUT, DELETE, CLEAR, COPY, DIFF, EXPORT, IMPORT
 	}
 
 	private final AWSSimpleSystemsManagementClientBuilder ssmBuilder;
@@ -118,7 +116,7 @@ class Main {
 
 	private File confDir;
 
-	private int fetchSize = DEFAULT_MAX_RESULTS;
+	private int fetchSize = SsmpleClient.DEFAULT_FETCH_SIZE;
 
 	private SsmCmd ssmCmd = SsmCmd.GET;
 
@@ -130,17 +128,75 @@ class Main {
 
 	private boolean noPutSecureString;
 
+	private boolean scrubSecrets;
+
 	private boolean clearOnPut;
 
+	private File journalFile;
+
+	private PutJournal putJournal;
+
+	private String destinationPrefix;
+
+	private final Map<String, String> keyIdMap = new LinkedHashMap<>();
+
+	private boolean dryRun;
+
+	private boolean decryptDiff;
+
+	private File outputFile;
+
+	private File inputFile;
+
+	private boolean exportValues;
+
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	private Shard shard;
+
+	private long lockTimeout = FileStoreLock.DEFAULT_TIMEOUT_MILLIS;
+
+	private ParameterSelector selector = ParameterSelector.ALL;
+
+	private final ClientConfiguration clientConfiguration = new ClientConfiguration();
+
+	private int maxConnections;
+
+	private boolean warmUp;
+
+	private boolean packed;
+
+	private ParameterTier packedTier = ParameterTier.Advanced;
+
+	private boolean compressPacks;
+
+	private double hedgePercentile;
+
+	private double hedgeBudget = RequestHedger.DEFAULT_BUDGET;
+
+	private ExecutorService executor;
+
+	private ExecutorService fileExecutor;
+
+	private List<String> resolvedFilenames;
+
 	private Map<String, FileStore> fileStores = new LinkedHashMap<>();
 
 	private final AWSKMSClientBuilder kmsBuilder;
 
-	private AWSKMS kms;
+	private SsmpleClient client;
 
-	private final Map<String, String> aliasesToKeys = new HashMap<>();
+	private ParameterPack parameterPack;
 
-	private final Map<String, String> keysToAliases = new HashMap<>();
+	private ClientCache clientCache;
+
+	private String profile;
+
+	private InputStream stdin = System.in;
+
+	private PrintStream stdout = System.out;
+
+	private PrintStream stderr = System.err;
 
 	/**
 	 * Pass in the ssmBuilder so it can be modified by CLI params.
@@ -329,351 +385,1740 @@ class Main {
 	 *
 	 * @return the value
 	 */
-	public AWSKMSClientBuilder getKmsBuilder() {
-		return kmsBuilder;
+	File getJournalFile() {
+		return journalFile;
 	}
 
-	private void buildAliasList() {
-		if (this.kms == null) {
-			this.kms = this.kmsBuilder.build();
-		}
-
-		final ListAliasesResult result = this.kms.listAliases();
-		for (AliasListEntry entry : result.getAliases()) {
-			if (entry.getTargetKeyId() != null && !entry.getTargetKeyId().isEmpty()) {
-				this.aliasesToKeys.put(entry.getAliasName(), entry.getTargetKeyId());
-				this.keysToAliases.put(entry.getTargetKeyId(), entry.getAliasName());
-			}
-		}
+	/**
+	 * Set the value. When set, completed puts are recorded so that a retried put can resume.
+	 *
+	 * @param journalFile the value
+	 */
+	void setJournalFile(final File journalFile) {
+		this.journalFile = journalFile;
 	}
 
-	String derefAlias(final String alias) {
-		final String fqAlias;
-		if (alias.startsWith("alias/")) {
-			fqAlias = alias;
-		} else {
-			fqAlias = "alias/" + alias;
-		}
-		return this.aliasesToKeys.getOrDefault(fqAlias, fqAlias);
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	String getDestinationPrefix() {
+		return destinationPrefix;
 	}
 
-	String getAliasForKeyId(String keyId) {
-		return this.keysToAliases.getOrDefault(keyId, keyId);
+	/**
+	 * Set the value.
+	 *
+	 * @param destinationPrefix the value
+	 */
+	void setDestinationPrefix(final String destinationPrefix) {
+		this.destinationPrefix = destinationPrefix;
 	}
 
-	static String getCanonicalPath(File file) {
-		try {
-			return file.getCanonicalPath();
-		} catch (IOException e) {
-			e.printStackTrace(System.err);
-		}
-		return file.getAbsolutePath();
+	/**
+	 * Get the map for modification. Maps source KMS key IDs or aliases to destination key IDs or aliases for copy.
+	 *
+	 * @return the keyIdMap
+	 */
+	Map<String, String> getKeyIdMap() {
+		return keyIdMap;
 	}
 
-	Iterable<String> getResolvedFilenames() {
-		final File basedir = getConfDir();
-		final String basepath = getCanonicalPath(basedir) + "/";
-		return this.filenames.stream()
-				.map(it -> getCanonicalPath(new File(basedir, it)))
-				.filter(it -> it.startsWith(basepath))
-				.map(it -> it.substring(basepath.length()))
-				.collect(Collectors.toList());
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	boolean isDryRun() {
+		return dryRun;
 	}
 
 	/**
-	 * Build a client and go with provided parameters.
+	 * Set the value.
 	 *
-	 * @throws IOException if I/O fails exceptionally
+	 * @param dryRun the value
 	 */
-	void doMain() throws IOException {
-		this.ssm = this.ssmBuilder.build();
-		if (getConfDir().exists() && getConfDir().isDirectory()) {
-
-			for (String filename : getResolvedFilenames()) {
-				FileStore fileStore = AbstractFileStore.getStore(getConfDir(), filename);
-				fileStore.load();
-				this.fileStores.put(filename, fileStore);
-			}
-
-			switch (getSsmCmd()) {
-			case GET:
-				if (!isNoStoreSecureString()) {
-					this.buildAliasList();
-				}
-				doGet();
-				break;
-			case PUT:
-				if (!isNoPutSecureString()) {
-					this.buildAliasList();
-				}
-				doPut();
-				break;
-			case DELETE:
-				doDelete();
-				break;
-			case CLEAR:
-				doClear();
-				break;
-			}
-
-		} else {
-			throw new IOException("Failed to read conf directory " + getConfDir().getAbsolutePath());
-		}
+	void setDryRun(final boolean dryRun) {
+		this.dryRun = dryRun;
 	}
 
-	// -----------
-	// GET methods
-	// -----------
-
-	private void doGet() throws IOException {
-		if (getConfDir().mkdirs() || !getConfDir().canWrite()) {
-			throw new IOException("Insufficient permissions to manage conf directory " + getConfDir().getAbsolutePath());
-		}
-
-		for (String filename : getResolvedFilenames()) {
-			getParamsPerFile(filename, fileStores.get(filename));
-		}
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	boolean isDecryptDiff() {
+		return decryptDiff;
 	}
 
-	private void getParamsPerFile(final String filename, final FileStore fileStore) throws IOException {
-		for (String prefix : paramPathPrefixes) {
-			final String parameterPath = buildParameterPath(prefix, filename, null);
-			getParamsForPath(parameterPath, fileStore);
-		}
-
-		if (!fileStore.getKeys().isEmpty()) {
-			fileStore.save();
-		}
+	/**
+	 * Set the value. SecureString values are only compared when this is true.
+	 *
+	 * @param decryptDiff the value
+	 */
+	void setDecryptDiff(final boolean decryptDiff) {
+		this.decryptDiff = decryptDiff;
 	}
 
 	/**
-	 * If value is all spaces, subtract a space to reconstruct the original value for export.
+	 * Get the value.
 	 *
-	 * @param value parameter value.
-	 * @return unescaped value
+	 * @return the value
 	 */
-	private static String unescapeValueAfterGet(final String value) {
-		if (value.isEmpty()) {
-			return value;
-		}
-
-		for (int i = 0; i < value.length(); i++) {
-			if (value.charAt(i) != ' ') {
-				return value;
-			}
-		}
-
-		return value.substring(0, value.length() - 1);
+	File getOutputFile() {
+		return outputFile;
 	}
 
 	/**
-	 * If value is the empty string or all spaces, add a space so the value is non-empty for SSM.
+	 * Set the value. Output is gzipped if the name ends with .gz, and goes to stdout if null.
 	 *
-	 * @param value parameter value.
-	 * @return escaped value
+	 * @param outputFile the value
 	 */
-	private static String escapeValueBeforePut(final String value) {
-		for (int i = 0; i < value.length(); i++) {
-			if (value.charAt(i) != ' ') {
-				return value;
-			}
-		}
-
-		return value + " ";
+	void setOutputFile(final File outputFile) {
+		this.outputFile = outputFile;
 	}
 
-	private void getParamsForPath(final String parameterPath, final FileStore fileStore) {
-		findAllParametersForPath(parameterPath).values().stream()
-				.filter(it -> it.getName().startsWith(parameterPath + "/"))
-				.forEach(it -> {
-					final String storeKey = it.getName().substring(parameterPath.length() + 1);
-					if (ParameterType.fromValue(it.getType()) != ParameterType.SecureString || !isNoStoreSecureString()) {
-						fileStore.putParam(storeKey, unescapeValueAfterGet(it.getValue()));
-
-						if (ParameterType.fromValue(it.getType()) == ParameterType.SecureString) {
-							final String sidecarStoreKey = storeKey + KEY_ID_SUFFIX;
-							DescribeParametersResult result = ssm.describeParameters(
-									new DescribeParametersRequest()
-											.withFilters(
-													new ParametersFilter().withKey(ParametersFilterKey.Name).withValues(it.getName())));
-
-							Optional<String> paramKeyId = result.getParameters().stream()
-									.findFirst()
-									.flatMap(meta -> Optional.ofNullable(meta.getKeyId()))
-									.map(this::getAliasForKeyId);
-
-							paramKeyId.ifPresent(keyValue -> fileStore.putParam(sidecarStoreKey, keyValue));
-						}
-					}
-				});
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	File getInputFile() {
+		return inputFile;
 	}
 
-	// -----------
-	// PUT methods
-	// -----------
-
-	private void doPut() {
-		if (this.getParamPathPrefixes().size() != 1) {
-			throw new IllegalArgumentException("put command requires exactly one -s/--starts-with argument.");
-		}
-
-		for (String filename : getResolvedFilenames()) {
-			putParamsPerFile(filename, this.paramPathPrefixes.get(0), fileStores.get(filename));
-		}
+	/**
+	 * Set the value. Input is gunzipped if the name ends with .gz, and comes from stdin if null.
+	 *
+	 * @param inputFile the value
+	 */
+	void setInputFile(final File inputFile) {
+		this.inputFile = inputFile;
 	}
 
-	private void putParamsPerFile(final String filename, final String paramPathPrefix, final FileStore store) {
-		Set<String> storeKeys = store.getKeys();
-		if (isClearOnPut()) {
-			clearParamsPerFile(filename, paramPathPrefix);
-		}
-		for (String key : storeKeys.stream().filter(it -> !it.endsWith(KEY_ID_SUFFIX)).collect(Collectors.toSet())) {
-			final String sidecarKeyId = key + KEY_ID_SUFFIX;
-			final String name = buildParameterPath(this.paramPathPrefixes.get(0), filename, key);
-
-			if (isNoPutSecureString() && storeKeys.contains(sidecarKeyId)) {
-				continue;
-			}
-
-			store.getValue(key).ifPresent(value -> {
-				final PutParameterRequest req = new PutParameterRequest()
-						.withName(name)
-						.withType(ParameterType.String)
-						.withValue(escapeValueBeforePut(value))
-						.withOverwrite(isOverwritePut());
-
-				Optional<String> paramKeyId = Stream.of(Optional.ofNullable(getKeyIdPut()), store.getValue(sidecarKeyId))
-						.filter(Optional::isPresent)
-						.map(Optional::get)
-						.map(this::derefAlias)
-						.findFirst();
-
-				ssm.putParameter(paramKeyId.map(keyValue -> req.withType(ParameterType.SecureString).withKeyId(keyValue)).orElse(req));
-			});
-		}
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	boolean isExportValues() {
+		return exportValues;
 	}
 
-	// --------------
-	// DELETE methods
-	// --------------
-
-	private void doDelete() {
-		if (this.getParamPathPrefixes().size() != 1) {
-			throw new IllegalArgumentException("delete command requires exactly one -s/--starts-with argument.");
-		}
-
-		for (String filename : getResolvedFilenames()) {
-			deleteParamsPerFile(filename, fileStores.get(filename));
-		}
+	/**
+	 * Set the value.
+	 *
+	 * @param exportValues the value
+	 */
+	void setExportValues(final boolean exportValues) {
+		this.exportValues = exportValues;
 	}
 
-	private void deleteParamsPerFile(final String filename, final FileStore fileStore) {
-		final String singlePrefix = this.getParamPathPrefixes().get(0);
-		final String parameterPath = buildParameterPath(singlePrefix, filename, null);
-
-		Set<String> names = fileStore.getKeys().stream()
-				.map(key -> buildParameterPath(singlePrefix, filename, key))
-				.collect(Collectors.toSet());
-
-		List<Parameter> parameters = new ArrayList<>(findAllParametersForPath(parameterPath).values());
-
-		ofSubLists(parameters, 10)
-				.map(toDelete -> toDelete.stream().map(Parameter::getName).filter(names::contains).collect(Collectors.toList()))
-				.filter(toDelete -> toDelete.size() > 0)
-				.forEach(toDelete -> ssm.deleteParameters(new DeleteParametersRequest().withNames(toDelete)));
+	/**
+	 * Check whether the command works on parameter prefixes alone rather than between local files and a prefix.
+	 *
+	 * @return true for copy, export and import, and for diff with a destination prefix
+	 */
+	boolean isPrefixCommand() {
+		return getSsmCmd() == SsmCmd.COPY || getSsmCmd() == SsmCmd.EXPORT || getSsmCmd() == SsmCmd.IMPORT
+				|| (getSsmCmd() == SsmCmd.DIFF && getDestinationPrefix() != null);
 	}
 
-	// --------------
-	// CLEAR methods
-	// --------------
-
-	private void doClear() {
-		if (this.getParamPathPrefixes().size() != 1) {
-			throw new IllegalArgumentException("clear command requires exactly one -s/--starts-with argument.");
-		}
-
-		for (String filename : getResolvedFilenames()) {
-			clearParamsPerFile(filename, this.getParamPathPrefixes().get(0));
-		}
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	int getParallelism() {
+		return parallelism;
 	}
 
-	private static boolean isClearableParameter(final String pathPrefix, final String paramPath) {
-		return paramPath.startsWith(pathPrefix + "/");
+	/**
+	 * Set the value.
+	 *
+	 * @param parallelism the value
+	 */
+	void setParallelism(final int parallelism) {
+		this.parallelism = parallelism;
 	}
 
-	private void clearParamsPerFile(final String filename, final String paramPathPrefix) {
-		final String parameterPath = buildParameterPath(paramPathPrefix, filename, null);
-
-		List<Parameter> parameters = new ArrayList<>(findAllParametersForPath(parameterPath).values());
-
-		ofSubLists(parameters, 10)
-				.map(toDelete -> toDelete.stream().map(Parameter::getName).filter(it -> isClearableParameter(parameterPath, it))
-						.collect(Collectors.toList()))
-				.filter(toDelete -> toDelete.size() > 0)
-				.forEach(toDelete -> ssm.deleteParameters(new DeleteParametersRequest().withNames(toDelete)));
+	/**
+	 * Get the value for modification. Applied to both the SSM and KMS client builders.
+	 *
+	 * @return the client configuration
+	 */
+	ClientConfiguration getClientConfiguration() {
+		return clientConfiguration;
 	}
 
-	// --------------
-	// common methods
-	// --------------
+	/**
+	 * Get the value. Zero means the pool is sized from the parallelism.
+	 *
+	 * @return the value
+	 */
+	int getMaxConnections() {
+		return maxConnections;
+	}
 
-	private static <T> Stream<List<T>> ofSubLists(final List<T> source, final int length) {
-		if (length <= 0)
-			throw new IllegalArgumentException("length = " + length);
-		int size = source.size();
-		if (size <= 0)
-			return Stream.empty();
-		int fullChunks = (size - 1) / length;
-		return IntStream.range(0, fullChunks + 1).mapToObj(
-				n -> source.subList(n * length, n == fullChunks ? size : (n + 1) * length));
-	}
-
-	private Map<String, Parameter> findAllParametersForPath(final String parameterPath) {
-		return findAllParametersForPath(new HashMap<>(), parameterPath, null);
-	}
-
-	private Map<String, Parameter> findAllParametersForPath(final Map<String, Parameter> accumulator, final String parameterPath,
-			final String nextToken) {
-		GetParametersByPathRequest req = new GetParametersByPathRequest()
-				.withMaxResults(getFetchSize())
-				.withPath(parameterPath)
-				.withWithDecryption(true)
-				.withNextToken(nextToken)
-				.withRecursive(false);
-		GetParametersByPathResult result = this.ssm.getParametersByPath(req);
-		List<Parameter> resultParameters = result.getParameters();
-		String fetchToken = result.getNextToken();
-		boolean isLast = fetchToken == null || fetchToken.isEmpty() || resultParameters.isEmpty() || resultParameters.size() < getFetchSize();
-		for (Parameter parameter : resultParameters) {
-			accumulator.put(parameter.getName(), parameter);
-		}
-		if (isLast) {
-			return accumulator;
-		} else {
-			return findAllParametersForPath(accumulator, parameterPath, fetchToken);
-		}
+	/**
+	 * Set the value.
+	 *
+	 * @param maxConnections the value
+	 */
+	void setMaxConnections(final int maxConnections) {
+		this.maxConnections = maxConnections;
 	}
 
 	/**
-	 * CLI entry point.
+	 * Get the value.
 	 *
-	 * @param args the standard array of command line arguments.
-	 * @throws IOException when something breaks
+	 * @return the value
 	 */
-	public static void main(String[] args) throws IOException {
-		Main spp = new Main(AWSSimpleSystemsManagementClientBuilder.standard(), AWSKMSClientBuilder.standard());
+	boolean isWarmUp() {
+		return warmUp;
+	}
 
-		List<String> argList = Arrays.asList(args);
-		Iterator<String> opts = argList.iterator();
+	/**
+	 * Set the value.
+	 *
+	 * @param warmUp the value
+	 */
+	void setWarmUp(final boolean warmUp) {
+		this.warmUp = warmUp;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	ParameterSelector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Set the value.
+	 *
+	 * @param selector the value
+	 */
+	void setSelector(final ParameterSelector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	boolean isScrubSecrets() {
+		return scrubSecrets;
+	}
+
+	/**
+	 * Set the value.
+	 *
+	 * @param scrubSecrets the value
+	 */
+	void setScrubSecrets(final boolean scrubSecrets) {
+		this.scrubSecrets = scrubSecrets;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	String getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Set the value.
+	 *
+	 * @param profile the value
+	 */
+	void setProfile(final String profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	InputStream getStdin() {
+		return stdin;
+	}
+
+	/**
+	 * Set the value. Null means there is no standard input, so {@code import} requires {@code --input}.
+	 *
+	 * @param stdin the value
+	 */
+	void setStdin(final InputStream stdin) {
+		this.stdin = stdin;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	PrintStream getStdout() {
+		return stdout;
+	}
+
+	/**
+	 * Set the value. Commands print results and exports here instead of to {@code System.out}.
+	 *
+	 * @param stdout the value
+	 */
+	void setStdout(final PrintStream stdout) {
+		this.stdout = stdout;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	PrintStream getStderr() {
+		return stderr;
+	}
+
+	/**
+	 * Set the value. Commands print summaries and failures here instead of to {@code System.err}.
+	 *
+	 * @param stderr the value
+	 */
+	void setStderr(final PrintStream stderr) {
+		this.stderr = stderr;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	ClientCache getClientCache() {
+		return clientCache;
+	}
+
+	/**
+	 * Set the value. A resident server sets this so that runs with the same settings share clients.
+	 *
+	 * @param clientCache the value
+	 */
+	void setClientCache(final ClientCache clientCache) {
+		this.clientCache = clientCache;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	boolean isPacked() {
+		return packed;
+	}
+
+	/**
+	 * Set the value.
+	 *
+	 * @param packed the value
+	 */
+	void setPacked(final boolean packed) {
+		this.packed = packed;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	ParameterTier getPackedTier() {
+		return packedTier;
+	}
+
+	/**
+	 * Set the value.
+	 *
+	 * @param packedTier the value
+	 */
+	void setPackedTier(final ParameterTier packedTier) {
+		this.packedTier = packedTier;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	boolean isCompressPacks() {
+		return compressPacks;
+	}
+
+	/**
+	 * Set the value.
+	 *
+	 * @param compressPacks the value
+	 */
+	void setCompressPacks(final boolean compressPacks) {
+		this.compressPacks = compressPacks;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	long getLockTimeout() {
+		return lockTimeout;
+	}
+
+	/**
+	 * Set the value.
+	 *
+	 * @param lockTimeout the value
+	 */
+	void setLockTimeout(final long lockTimeout) {
+		this.lockTimeout = lockTimeout;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	Shard getShard() {
+		return shard;
+	}
+
+	/**
+	 * Set the value.
+	 *
+	 * @param shard the value
+	 */
+	void setShard(final Shard shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/**
+	 * Set the value. Zero disables hedging.
+	 *
+	 * @param hedgePercentile the value
+	 */
+	void setHedgePercentile(final double hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	double getHedgeBudget() {
+		return hedgeBudget;
+	}
+
+	/**
+	 * Set the value.
+	 *
+	 * @param hedgeBudget the value
+	 */
+	void setHedgeBudget(final double hedgeBudget) {
+		this.hedgeBudget = hedgeBudget;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	public AWSKMSClientBuilder getKmsBuilder() {
+		return kmsBuilder;
+	}
+
+	/**
+	 * Check whether the command reads or writes SecureString key IDs, and so needs the KMS alias list.
+	 *
+	 * @return true if a KMS client is needed
+	 */
+	private boolean isAliasListRequired() {
+		switch (getSsmCmd()) {
+		case GET:
+			return !isNoStoreSecureString();
+		case PUT:
+		case COPY:
+		case IMPORT:
+			return !isNoPutSecureString();
+		case EXPORT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	static String getCanonicalPath(File file) {
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * Get the -f arguments as file names relative to the conf directory. Globs like {@code *.properties} or
+	 * {@code **}{@code /*.yaml} are matched against existing files, and a directory selects every non-hidden file
+	 * beneath it. Each subdirectory becomes a level of the parameter hierarchy.
+	 *
+	 * @return distinct relative file names, /-delimited
+	 * @throws IOException if the conf directory can't be walked
+	 */
+	List<String> getResolvedFilenames() throws IOException {
+		if (this.resolvedFilenames == null) {
+			final File basedir = getConfDir();
+			final String basepath = getCanonicalPath(basedir) + File.separator;
+			final Set<String> resolved = new LinkedHashSet<>();
+			for (String filename : this.filenames) {
+				for (File file : expandFilename(basedir, filename)) {
+					final String path = getCanonicalPath(file);
+					if (path.startsWith(basepath)) {
+						resolved.add(path.substring(basepath.length()).replace(File.separatorChar, '/'));
+					}
+				}
+			}
+			this.resolvedFilenames = new ArrayList<>(resolved);
+		}
+		return this.resolvedFilenames;
+	}
+
+	private static boolean isGlob(final String filename) {
+		return filename.contains("*") || filename.contains("?") || filename.contains("[") || filename.contains("{");
+	}
+
+	private static List<File> expandFilename(final File basedir, final String filename) throws IOException {
+		final File file = new File(basedir, filename);
+		if (isGlob(filename)) {
+			final Path base = basedir.toPath();
+			final PathMatcher matcher = base.getFileSystem().getPathMatcher("glob:" + filename);
+			try (Stream<Path> walk = Files.walk(base)) {
+				return walk.filter(Files::isRegularFile)
+						.filter(it -> !it.getFileName().toString().startsWith("."))
+						.filter(it -> matcher.matches(base.relativize(it)))
+						.sorted()
+						.map(Path::toFile)
+						.collect(Collectors.toList());
+			}
+		} else if (file.isDirectory()) {
+			try (Stream<Path> walk = Files.walk(file.toPath())) {
+				return walk.filter(Files::isRegularFile)
+						.filter(it -> !it.getFileName().toString().startsWith("."))
+						.sorted()
+						.map(Path::toFile)
+						.collect(Collectors.toList());
+			}
+		}
+		return Collections.singletonList(file);
+	}
+
+	/**
+	 * Build a client and go with provided parameters.
+	 *
+	 * @throws IOException if I/O fails exceptionally
+	 */
+	void doMain() throws IOException {
+		// the default pool of 50 would cap -j, and hedged requests need a connection of their own.
+		getClientConfiguration().setMaxConnections(getMaxConnections() > 0 ? getMaxConnections()
+				: Math.max(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, getParallelism() * 2));
+		this.ssmBuilder.setClientConfiguration(getClientConfiguration());
+		this.kmsBuilder.setClientConfiguration(getClientConfiguration());
+		this.executor = WorkerPools.newWorkerPool("worker", getParallelism());
+		this.fileExecutor = WorkerPools.newWorkerPool("file", Runtime.getRuntime().availableProcessors());
+		final Supplier<SsmpleClient> newClient = () -> new SsmpleClient(this.ssmBuilder.build(),
+				isAliasListRequired() ? this.kmsBuilder.build() : null, this.executor);
+		final SsmpleClient baseClient = getClientCache() != null
+				? getClientCache().acquire(getClientCacheKey(), newClient) : newClient.get();
+		this.client = baseClient
+				.withExecutor(this.executor)
+				.withFetchSize(getFetchSize())
+				.withSecureStrings(!isNoStoreSecureString())
+				.withSelector(getSelector());
+		this.ssm = this.client.getSsm();
+		if (isPacked()) {
+			this.parameterPack = new ParameterPack(this.ssm, getPackedTier(), isCompressPacks());
+		}
+		if (getHedgePercentile() > 0.0) {
+			this.client = this.client.withHedging(getHedgePercentile(), getHedgeBudget());
+		}
+		if (isWarmUp()) {
+			// open the first connection while the conf directory is read.
+			CompletableFuture.runAsync(this::warmUpConnection, this.executor);
+		}
+		try {
+			doCommand();
+			if (this.client.getHedger() != null) {
+				stderr.println(String.format("hedged %d of %d page requests",
+						this.client.getHedger().getHedgeCount(), this.client.getHedger().getRequestCount()));
+			}
+		} finally {
+			WorkerPools.shutdown(this.executor);
+			WorkerPools.shutdown(this.fileExecutor);
+			if (this.client.getHedger() != null) {
+				this.client.getHedger().shutdown();
+			}
+			if (getClientCache() != null) {
+				getClientCache().release(baseClient);
+			}
+		}
+	}
+
+	/**
+	 * Describe everything that went into building the SSM and KMS clients, so runs with equal keys can share them.
+	 */
+	private String getClientCacheKey() {
+		final ClientConfiguration config = getClientConfiguration();
+		return String.join("|", String.valueOf(this.ssmBuilder.getRegion()),
+				String.valueOf(getProfile()),
+				String.valueOf(isAliasListRequired()), String.valueOf(config.getMaxConnections()),
+				String.valueOf(config.useTcpKeepAlive()), String.valueOf(config.getConnectionTTL()),
+				String.valueOf(config.getConnectionTimeout()), String.valueOf(config.getRequestTimeout()),
+				String.valueOf(config.getSocketTimeout()), String.valueOf(config.useGzip()));
+	}
+
+	/**
+	 * Load the KMS alias list, unless a cached client already has it.
+	 */
+	private void loadAliases() {
+		if (!this.client.isAliasesLoaded()) {
+			this.client.loadAliases();
+		}
+	}
+
+	private void doCommand() throws IOException {
+		if (isPrefixCommand()) {
+			// these read nothing from the conf directory, and -f only narrows them to those files.
+			if (getSsmCmd() == SsmCmd.COPY) {
+				if (!isNoPutSecureString()) {
+					loadAliases();
+				}
+				doCopy();
+			} else if (getSsmCmd() == SsmCmd.EXPORT) {
+				loadAliases();
+				doExport();
+			} else if (getSsmCmd() == SsmCmd.IMPORT) {
+				if (!isNoPutSecureString()) {
+					loadAliases();
+				}
+				doImport();
+			} else {
+				doDiffPrefixes();
+			}
+			return;
+		}
+
+		if (getConfDir().exists() && getConfDir().isDirectory()) {
+
+			// get loads each file alongside its fetch instead.
+			if (getSsmCmd() != SsmCmd.GET) {
+				loadFileStores();
+			}
+
+			switch (getSsmCmd()) {
+			case GET:
+				if (!isNoStoreSecureString()) {
+					loadAliases();
+				}
+				doGet();
+				break;
+			case PUT:
+				if (!isNoPutSecureString()) {
+					loadAliases();
+				}
+				if (isPacked()) {
+					doPutPacked();
+				} else {
+					doPut();
+				}
+				break;
+			case DELETE:
+				doDelete();
+				break;
+			case CLEAR:
+				doClear();
+				break;
+			case DIFF:
+				doDiffFiles();
+				break;
+			}
+
+		} else {
+			throw new IOException("Failed to read conf directory " + getConfDir().getAbsolutePath());
+		}
+	}
+
+	// -----------
+	// GET methods
+	// -----------
+
+	private void doGet() throws IOException {
+		if (getConfDir().mkdirs() || !getConfDir().canWrite()) {
+			throw new IOException("Insufficient permissions to manage conf directory " + getConfDir().getAbsolutePath());
+		}
+
+		// each file is merged on the file pool once its parameters are fetched, so the file is only locked briefly.
+		final List<String> ownedFilenames = getResolvedFilenames().stream()
+				.filter(this::inShard)
+				.collect(Collectors.toList());
+		final List<CompletableFuture<Void>> saved = new ArrayList<>();
+		for (String filename : ownedFilenames) {
+			final CompletableFuture<? extends Map<String, ? extends CharSequence>> fetched = isPacked()
+					? CompletableFuture.supplyAsync(() -> loadPacked(filename), executor)
+					: isScrubSecrets()
+					? client.loadScrubbedAsync(paramPathPrefixes, filename)
+					: client.loadAsync(paramPathPrefixes, filename);
+			saved.add(fetched.thenAcceptAsync(bindings -> mergeFileStore(filename, bindings), fileExecutor));
+		}
+		for (CompletableFuture<Void> future : saved) {
+			join(future);
+		}
+		if (getShard() != null) {
+			stderr.println(String.format("%s: %d of %d files", label("get"), ownedFilenames.size(),
+					getResolvedFilenames().size()));
+		}
+	}
+
+	/**
+	 * Read the file's pack under each prefix and overlay them, so later prefixes override earlier ones key by key.
+	 */
+	private Map<String, String> loadPacked(final String filename) {
+		final List<String> heads = paramPathPrefixes.stream()
+				.map(prefix -> SsmpleClient.buildParameterPath(prefix, filename, null))
+				.collect(Collectors.toList());
+		final Map<String, String> bindings = new LinkedHashMap<>();
+		try {
+			parameterPack.readAll(heads, !isNoStoreSecureString()).values().forEach(bindings::putAll);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bindings;
+	}
+
+	// -----------
+	// PUT methods
+	// -----------
+
+	private void doPut() throws IOException {
+		if (this.getParamPathPrefixes().size() != 1) {
+			throw new IllegalArgumentException("put command requires exactly one -s/--starts-with argument.");
+		}
+
+		openJournal();
+
+		final PutPipeline pipeline = newJournaledPipeline();
+		boolean completed = false;
+		try {
+			for (String filename : getResolvedFilenames()) {
+				putParamsPerFile(filename, this.paramPathPrefixes.get(0), fileStores.get(filename), pipeline);
+			}
+			completed = true;
+		} finally {
+			pipeline.awaitCompletion();
+			if (this.putJournal != null) {
+				this.putJournal.finish(completed && pipeline.getFailures().isEmpty());
+			}
+		}
+		reportPipeline(label("put"), pipeline);
+	}
+
+	private void openJournal() throws IOException {
+		if (getJournalFile() != null) {
+			this.putJournal = new PutJournal(getJournalFile(), PutJournal.DEFAULT_FLUSH_SIZE, stderr);
+			this.putJournal.load();
+		}
+	}
+
+	/**
+	 * Create a pipeline for puts recorded in the journal, if any. A put of the previous run may have succeeded after
+	 * its journal entry was last flushed, so without -o a parameter that already holds exactly the requested value is
+	 * counted as done.
+	 */
+	private PutPipeline newJournaledPipeline() {
+		final PutPipeline pipeline = new PutPipeline(ssm, executor, getParallelism(), DEFAULT_PUT_QUEUE_DEPTH);
+		if (this.putJournal != null && !isOverwritePut()) {
+			pipeline.setAlreadyPut(this::isAlreadyPut);
+		}
+		return pipeline;
+	}
+
+	private boolean isAlreadyPut(final PutParameterRequest req) {
+		final List<String> names = Collections.singletonList(req.getName());
+		final String keyId = client.describeKeyIds(names).get(req.getName());
+		final boolean isSecure = ParameterType.SecureString.toString().equals(req.getType());
+		if (isSecure != (keyId != null) || (isSecure && req.getKeyId() != null
+				&& !normalizeKeyId(req.getKeyId()).equals(normalizeKeyId(keyId)))) {
+			return false;
+		}
+		return req.getValue().equals(client.decryptValues(names).get(req.getName()));
+	}
+
+	private void putParamsPerFile(final String filename, final String paramPathPrefix, final FileStore store,
+			final PutPipeline pipeline) throws IOException {
+		Set<String> storeKeys = store.getKeys();
+		if (isClearOnPut()) {
+			clearBeforePut(filename, paramPathPrefix);
+		}
+		for (String key : storeKeys.stream().filter(it -> !it.endsWith(SsmpleClient.KEY_ID_SUFFIX)).collect(Collectors.toList())) {
+			final String sidecarKeyId = key + SsmpleClient.KEY_ID_SUFFIX;
+			final String name = SsmpleClient.buildParameterPath(this.paramPathPrefixes.get(0), filename, key);
+			if (!inShard(name)) {
+				continue;
+			}
+
+			if (isNoPutSecureString() && storeKeys.contains(sidecarKeyId)) {
+				pipeline.skip();
+				continue;
+			}
+
+			final Optional<String> value = store.getValue(key);
+			if (!value.isPresent()) {
+				pipeline.skip();
+				continue;
+			}
+
+			final PutParameterRequest req = new PutParameterRequest()
+					.withName(name)
+					.withType(ParameterType.String)
+					.withValue(SsmpleClient.escapeValueBeforePut(value.get()))
+					.withOverwrite(isOverwritePut());
+
+			Optional<String> paramKeyId = Stream.of(Optional.ofNullable(getKeyIdPut()), store.getValue(sidecarKeyId))
+					.filter(Optional::isPresent)
+					.map(Optional::get)
+					.map(client::derefAlias)
+					.findFirst();
+
+			paramKeyId.ifPresent(keyValue -> req.withType(ParameterType.SecureString).withKeyId(keyValue));
+
+			if (putJournal == null) {
+				pipeline.submit(req, null);
+			} else {
+				final String hash = PutJournal.hashPut(req.getType(), req.getKeyId(), req.getValue());
+				if (putJournal.isPutComplete(name, hash)) {
+					pipeline.skip();
+				} else {
+					pipeline.submit(req, done -> putJournal.recordPut(name, hash));
+				}
+			}
+		}
+	}
+
+	private void clearBeforePut(final String filename, final String paramPathPrefix) throws IOException {
+		final String parameterPath = SsmpleClient.buildParameterPath(paramPathPrefix, filename, null);
+		// a resumed put must not clear the parameters written before the interruption.
+		if (putJournal == null || !putJournal.isClearComplete(parameterPath)) {
+			clearParamsPerFile(filename, paramPathPrefix);
+			if (isPacked()) {
+				// the old pack is cleared too, or writing the new one without -o would fail.
+				parameterPack.delete(parameterPath);
+			}
+			if (putJournal != null) {
+				putJournal.recordClear(parameterPath);
+			}
+		}
+	}
+
+	private void doPutPacked() throws IOException {
+		if (this.getParamPathPrefixes().size() != 1) {
+			throw new IllegalArgumentException("put command requires exactly one -s/--starts-with argument.");
+		}
+
+		openJournal();
+
+		final Map<String, CompletableFuture<Boolean>> results = new LinkedHashMap<>();
+		for (String filename : getResolvedFilenames()) {
+			final String head = SsmpleClient.buildParameterPath(this.paramPathPrefixes.get(0), filename, null);
+			if (inShard(head)) {
+				results.put(head, CompletableFuture.supplyAsync(() -> {
+					try {
+						return putPackPerFile(filename, head, fileStores.get(filename));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}, executor));
+			}
+		}
+		int written = 0;
+		int skipped = 0;
+		int failed = 0;
+		for (Map.Entry<String, CompletableFuture<Boolean>> result : results.entrySet()) {
+			try {
+				if (join(result.getValue())) {
+					written++;
+				} else {
+					skipped++;
+				}
+			} catch (IOException | RuntimeException e) {
+				failed++;
+				stderr.println(String.format("%s failed: %s: %s", label("put"), result.getKey(), e.getMessage()));
+			}
+		}
+		if (this.putJournal != null) {
+			this.putJournal.finish(failed == 0);
+		}
+		stderr.println(String.format("%s: %d packs written, %d skipped, %d failed", label("put"), written, skipped,
+				failed));
+		if (failed > 0) {
+			throw new IOException(String.format("%s: %d puts failed", label("put"), failed));
+		}
+	}
+
+	/**
+	 * Put one file as a pack. A pack has one type, so its SecureString keys must all name the same KMS key, which
+	 * then encrypts the whole pack.
+	 *
+	 * @return false if the pack was skipped
+	 */
+	private boolean putPackPerFile(final String filename, final String head, final FileStore store)
+			throws IOException {
+		if (isClearOnPut()) {
+			clearBeforePut(filename, this.paramPathPrefixes.get(0));
+		}
+		final Set<String> storeKeys = store.getKeys();
+		final Map<String, String> bindings = new LinkedHashMap<>();
+		final Set<String> keyIds = new LinkedHashSet<>();
+		if (getKeyIdPut() != null) {
+			keyIds.add(client.derefAlias(getKeyIdPut()));
+		}
+		// sorted, so that an unchanged file encodes to the same pack and the journal can skip it.
+		for (String key : storeKeys.stream().filter(it -> !it.endsWith(SsmpleClient.KEY_ID_SUFFIX)).sorted()
+				.collect(Collectors.toList())) {
+			final String sidecarKeyId = key + SsmpleClient.KEY_ID_SUFFIX;
+			final Optional<String> sidecar = store.getValue(sidecarKeyId);
+			if (sidecar.isPresent() && isNoPutSecureString()) {
+				continue;
+			}
+			store.getValue(key).ifPresent(value -> bindings.put(key, value));
+			if (sidecar.isPresent()) {
+				bindings.put(sidecarKeyId, sidecar.get());
+				if (getKeyIdPut() == null) {
+					keyIds.add(client.derefAlias(sidecar.get()));
+				}
+			}
+		}
+		if (keyIds.size() > 1) {
+			throw new IllegalArgumentException(String.format("%s has keys for more than one KMS key %s; use -k to pick one",
+					filename, keyIds));
+		}
+		if (bindings.isEmpty()) {
+			return false;
+		}
+		final String keyId = keyIds.isEmpty() ? null : keyIds.iterator().next();
+		final String hash = PutJournal.hashPut(keyId == null ? ParameterType.String.toString()
+				: ParameterType.SecureString.toString(), keyId, parameterPack.hash(bindings));
+		if (putJournal != null && putJournal.isPutComplete(head, hash)) {
+			return false;
+		}
+		parameterPack.write(head, bindings, keyId, isOverwritePut());
+		if (putJournal != null) {
+			putJournal.recordPut(head, hash);
+		}
+		return true;
+	}
+
+	// --------------
+	// DELETE methods
+	// --------------
+
+	private void doDelete() throws IOException {
+		if (this.getParamPathPrefixes().size() != 1) {
+			throw new IllegalArgumentException("delete command requires exactly one -s/--starts-with argument.");
+		}
+
+		int deleted = 0;
+		for (String filename : getResolvedFilenames()) {
+			deleted += isPacked()
+					? deletePackedPerFile(filename, fileStores.get(filename))
+					: deleteParamsPerFile(filename, fileStores.get(filename));
+		}
+		stderr.println(String.format("%s: %d deleted", label("delete"), deleted));
+	}
+
+	/**
+	 * Remove the file's keys from its pack by rewriting the pack without them, with the same KMS key.
+	 */
+	private int deletePackedPerFile(final String filename, final FileStore fileStore) throws IOException {
+		final String head = SsmpleClient.buildParameterPath(this.getParamPathPrefixes().get(0), filename, null);
+		if (!inShard(head)) {
+			return 0;
+		}
+		final Map<String, String> bindings = parameterPack.readAll(Collections.singletonList(head), true).get(head);
+		if (bindings == null) {
+			return 0;
+		}
+		final int before = bindings.size();
+		bindings.keySet().removeAll(fileStore.getKeys());
+		if (bindings.size() == before) {
+			return 0;
+		}
+		if (bindings.isEmpty()) {
+			parameterPack.delete(head);
+		} else {
+			final String keyId = client.describeKeyIds(Collections.singletonList(head)).get(head);
+			parameterPack.write(head, bindings, keyId, true);
+		}
+		return before - bindings.size();
+	}
+
+	private int deleteParamsPerFile(final String filename, final FileStore fileStore) {
+		final String singlePrefix = this.getParamPathPrefixes().get(0);
+		final String parameterPath = SsmpleClient.buildParameterPath(singlePrefix, filename, null);
+
+		Set<String> names = fileStore.getKeys().stream()
+				.map(key -> SsmpleClient.buildParameterPath(singlePrefix, filename, key))
+				.filter(this::inShard)
+				.collect(Collectors.toSet());
+
+		List<Parameter> parameters = new ArrayList<>(findSelectedParametersForPath(parameterPath).values());
+
+		return deleteInBatches(parameters.stream().map(Parameter::getName).filter(names::contains));
+	}
+
+	private int deleteInBatches(final Stream<String> names) {
+		return SsmpleClient.ofSubLists(names.collect(Collectors.toList()), SsmpleClient.MAX_NAMES_PER_REQUEST)
+				.mapToInt(toDelete -> ssm.deleteParameters(new DeleteParametersRequest().withNames(toDelete))
+						.getDeletedParameters().size())
+				.sum();
+	}
+
+	// --------------
+	// CLEAR methods
+	// --------------
+
+	private void doClear() throws IOException {
+		if (this.getParamPathPrefixes().size() != 1) {
+			throw new IllegalArgumentException("clear command requires exactly one -s/--starts-with argument.");
+		}
+
+		int deleted = 0;
+		for (String filename : getResolvedFilenames()) {
+			if (isPacked()) {
+				final String head = SsmpleClient.buildParameterPath(this.getParamPathPrefixes().get(0), filename, null);
+				deleted += inShard(head) ? parameterPack.delete(head) : 0;
+			} else {
+				deleted += clearParamsPerFile(filename, this.getParamPathPrefixes().get(0));
+			}
+		}
+		stderr.println(String.format("%s: %d deleted", label("clear"), deleted));
+	}
+
+	private static boolean isClearableParameter(final String pathPrefix, final String paramPath) {
+		return paramPath.startsWith(pathPrefix + "/");
+	}
+
+	private int clearParamsPerFile(final String filename, final String paramPathPrefix) {
+		final String parameterPath = SsmpleClient.buildParameterPath(paramPathPrefix, filename, null);
+
+		List<Parameter> parameters = new ArrayList<>(findSelectedParametersForPath(parameterPath).values());
+
+		// a sharded clear must leave other shards' parameters alone, including those another shard just put.
+		return deleteInBatches(parameters.stream().map(Parameter::getName)
+				.filter(it -> isClearableParameter(parameterPath, it) && inShard(it)));
+	}
+
+	// ------------
+	// COPY methods
+	// ------------
+
+	private void doCopy() throws IOException {
+		if (this.getParamPathPrefixes().size() != 1) {
+			throw new IllegalArgumentException("copy command requires exactly one -s/--starts-with argument.");
+		}
+		if (getDestinationPrefix() == null) {
+			throw new IllegalArgumentException("copy command requires a -d/--destination argument.");
+		}
+
+		final String sourcePrefix = trimTrailingSlash(this.getParamPathPrefixes().get(0));
+		final String destPrefix = trimTrailingSlash(getDestinationPrefix());
+		final boolean recursive = this.filenames.isEmpty();
+		final List<String> sourcePaths = new ArrayList<>();
+		final List<String> destPaths = new ArrayList<>();
+		if (recursive) {
+			sourcePaths.add(sourcePrefix);
+			destPaths.add(destPrefix);
+		} else {
+			for (String filename : this.filenames) {
+				sourcePaths.add(SsmpleClient.buildParameterPath(sourcePrefix, filename, null));
+				destPaths.add(SsmpleClient.buildParameterPath(destPrefix, filename, null));
+			}
+		}
+
+		if (isDryRun()) {
+			previewCopy(sourcePaths, destPaths, recursive);
+			return;
+		}
+
+		final PutPipeline pipeline = new PutPipeline(ssm, executor, getParallelism(), DEFAULT_PUT_QUEUE_DEPTH);
+		try {
+			for (int i = 0; i < sourcePaths.size(); i++) {
+				copyParamsForPath(sourcePaths.get(i), destPaths.get(i), recursive, pipeline);
+			}
+		} finally {
+			pipeline.awaitCompletion();
+		}
+		reportPipeline(label("copy"), pipeline);
+	}
+
+	private static String trimTrailingSlash(final String path) {
+		if (path.length() > 1 && path.endsWith("/")) {
+			return path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	private void copyParamsForPath(final String sourcePath, final String destPath, final boolean recursive,
+			final PutPipeline pipeline) {
+		// SecureStrings skipped by --no-put-secure-string are not worth decrypting.
+		client.forEachPage(sourcePath, recursive, !isNoPutSecureString(), page -> {
+			final Map<String, ParameterMetadata> metadata = client.describeMetadata(page.stream()
+					.map(Parameter::getName)
+					.collect(Collectors.toList()));
+
+			for (Parameter parameter : page) {
+				if (!parameter.getName().startsWith(sourcePath + "/") || !inShard(parameter.getName())) {
+					continue;
+				}
+				final boolean isSecure = ParameterType.fromValue(parameter.getType()) == ParameterType.SecureString;
+				if (isSecure && isNoPutSecureString()) {
+					pipeline.skip();
+					continue;
+				}
+				final PutParameterRequest req = new PutParameterRequest()
+						.withName(destPath + parameter.getName().substring(sourcePath.length()))
+						.withType(parameter.getType())
+						.withValue(parameter.getValue())
+						.withOverwrite(isOverwritePut());
+				final Optional<ParameterMetadata> meta = Optional.ofNullable(metadata.get(parameter.getName()));
+				if (isSecure) {
+					Optional.ofNullable(remapKeyId(meta.map(ParameterMetadata::getKeyId).orElse(null)))
+							.ifPresent(req::withKeyId);
+				}
+				// a Standard source leaves the tier to SSM, since an existing Advanced destination can't be downgraded.
+				meta.map(ParameterMetadata::getTier)
+						.filter(tier -> !ParameterTier.Standard.toString().equals(tier))
+						.ifPresent(req::withTier);
+				pipeline.submit(req, null);
+			}
+		});
+	}
+
+	/**
+	 * Choose the destination KMS key for a copied SecureString. -k/--key-id-put-all wins, then a matching
+	 * --key-id-map entry, and otherwise the source key is kept.
+	 *
+	 * @param sourceKeyId the key ID of the source parameter
+	 * @return the key ID or alias for the destination parameter
+	 */
+	private String remapKeyId(final String sourceKeyId) {
+		if (getKeyIdPut() != null) {
+			return client.derefAlias(getKeyIdPut());
+		}
+		if (sourceKeyId == null) {
+			return null;
+		}
+		final String sourceAlias = client.getAliasForKeyId(sourceKeyId);
+		for (Map.Entry<String, String> entry : this.keyIdMap.entrySet()) {
+			final String from = entry.getKey();
+			if (from.equals(sourceKeyId) || from.equals(sourceAlias)
+					|| client.derefAlias(from).equals(sourceKeyId) || client.derefAlias(from).equals(sourceAlias)) {
+				return client.derefAlias(entry.getValue());
+			}
+		}
+		return sourceKeyId;
+	}
+
+	/**
+	 * Print the puts a copy would make, as a diff of what it would write against the destination. Values are compared
+	 * by hash, SecureStrings only with --decrypt, and their KMS keys as -k and --key-id-map would remap them.
+	 */
+	private void previewCopy(final List<String> sourcePaths, final List<String> destPaths, final boolean recursive)
+			throws IOException {
+		final List<CompletableFuture<Map<String, ParameterDiff.Entry>>> desired = sourcePaths.stream()
+				.map(path -> CompletableFuture.supplyAsync(() -> indexPath(path, recursive, false,
+						parameter -> inShard(parameter.getName()) && !(isNoPutSecureString()
+								&& ParameterType.fromValue(parameter.getType()) == ParameterType.SecureString),
+						keyId -> normalizeKeyId(remapKeyId(keyId))), executor))
+				.collect(Collectors.toList());
+		final List<CompletableFuture<Map<String, ParameterDiff.Entry>>> current = destPaths.stream()
+				.map(path -> CompletableFuture.supplyAsync(() -> indexPath(path, recursive, false,
+						parameter -> true, this::normalizeKeyId), executor))
+				.collect(Collectors.toList());
+
+		diffAll(label("copy"), new ParameterDiff(new NdjsonWriter(stdout), isOverwritePut(), false), destPaths,
+				desired, current);
+	}
+
+	/**
+	 * Resolve an alias to its key ID, so that a parameter's key compares equal however it was named.
+	 */
+	private String normalizeKeyId(final String keyId) {
+		if (keyId != null && keyId.startsWith("alias/")) {
+			return client.derefAlias(keyId);
+		}
+		return keyId;
+	}
+
+	// ------------
+	// DIFF methods
+	// ------------
+
+	private void doDiffFiles() throws IOException {
+		if (this.getParamPathPrefixes().size() != 1) {
+			throw new IllegalArgumentException("diff command requires exactly one -s/--starts-with argument, or a -d/--destination.");
+		}
+
+		final String prefix = this.getParamPathPrefixes().get(0);
+		final List<String> paths = new ArrayList<>();
+		final List<Map<String, ParameterDiff.Entry>> desired = new ArrayList<>();
+		for (String filename : getResolvedFilenames()) {
+			paths.add(SsmpleClient.buildParameterPath(prefix, filename, null));
+			desired.add(indexFileStore(fileStores.get(filename)));
+		}
+
+		final List<CompletableFuture<Map<String, ParameterDiff.Entry>>> current = paths.stream()
+				.map(path -> CompletableFuture.supplyAsync(() -> indexPath(path, false, true), executor))
+				.collect(Collectors.toList());
+
+		diffAll("diff", new ParameterDiff(new NdjsonWriter(stdout)), paths,
+				desired.stream().map(CompletableFuture::completedFuture).collect(Collectors.toList()), current);
+	}
+
+	private void doDiffPrefixes() throws IOException {
+		if (this.getParamPathPrefixes().size() != 1) {
+			throw new IllegalArgumentException("diff command requires exactly one -s/--starts-with argument.");
+		}
+
+		final String sourcePrefix = trimTrailingSlash(this.getParamPathPrefixes().get(0));
+		final String destPrefix = trimTrailingSlash(getDestinationPrefix());
+		final boolean recursive = this.filenames.isEmpty();
+		final List<String> sourcePaths = new ArrayList<>();
+		final List<String> destPaths = new ArrayList<>();
+		if (recursive) {
+			sourcePaths.add(sourcePrefix);
+			destPaths.add(destPrefix);
+		} else {
+			for (String filename : this.filenames) {
+				sourcePaths.add(SsmpleClient.buildParameterPath(sourcePrefix, filename, null));
+				destPaths.add(SsmpleClient.buildParameterPath(destPrefix, filename, null));
+			}
+		}
+
+		final List<CompletableFuture<Map<String, ParameterDiff.Entry>>> desired = sourcePaths.stream()
+				.map(path -> CompletableFuture.supplyAsync(() -> indexPath(path, recursive, false), executor))
+				.collect(Collectors.toList());
+		final List<CompletableFuture<Map<String, ParameterDiff.Entry>>> current = destPaths.stream()
+				.map(path -> CompletableFuture.supplyAsync(() -> indexPath(path, recursive, false), executor))
+				.collect(Collectors.toList());
+
+		diffAll("diff", new ParameterDiff(new NdjsonWriter(stdout)), destPaths, desired, current);
+	}
+
+	/**
+	 * Write differences to stdout as each pair of paths becomes available, in path order, and a summary to stderr.
+	 */
+	private void diffAll(final String label, final ParameterDiff diff, final List<String> currentPaths,
+			final List<CompletableFuture<Map<String, ParameterDiff.Entry>>> desired,
+			final List<CompletableFuture<Map<String, ParameterDiff.Entry>>> current) throws IOException {
+		for (int i = 0; i < currentPaths.size(); i++) {
+			diff.compare(currentPaths.get(i), join(desired.get(i)), join(current.get(i)));
+		}
+		stderr.println(label + ": " + diff.getCounts().entrySet().stream()
+				.map(entry -> entry.getValue() + " " + entry.getKey())
+				.collect(Collectors.joining(", ")));
+	}
+
+	private static <T> T join(final CompletableFuture<T> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Index the parameters a put of this file store would write, by key.
+	 */
+	private Map<String, ParameterDiff.Entry> indexFileStore(final FileStore store) {
+		final Map<String, ParameterDiff.Entry> entries = new LinkedHashMap<>();
+		final Set<String> storeKeys = store.getKeys();
+		for (String key : storeKeys) {
+			if (key.endsWith(SsmpleClient.KEY_ID_SUFFIX)) {
+				continue;
+			}
+			final boolean isSecure = storeKeys.contains(key + SsmpleClient.KEY_ID_SUFFIX) || getKeyIdPut() != null;
+			if (isNoPutSecureString() && storeKeys.contains(key + SsmpleClient.KEY_ID_SUFFIX)) {
+				continue;
+			}
+			store.getValue(key).ifPresent(value -> entries.put(key, ParameterDiff.Entry.of(
+					(isSecure ? ParameterType.SecureString : ParameterType.String).toString(), value, true)));
+		}
+		return entries;
+	}
+
+	/**
+	 * Index the parameters under a path by name relative to the path.
+	 *
+	 * @param parameterPath the path
+	 * @param recursive     true to include all levels below the path
+	 * @param unescape      true to compare values as they would be stored in a local file
+	 * @return entries by relative name
+	 */
+	private Map<String, ParameterDiff.Entry> indexPath(final String parameterPath, final boolean recursive,
+			final boolean unescape) {
+		return indexPath(parameterPath, recursive, unescape, parameter -> true, null);
+	}
+
+	/**
+	 * Index the selected parameters under a path by name relative to the path.
+	 *
+	 * @param parameterPath the path
+	 * @param recursive     true to include all levels below the path
+	 * @param unescape      true to compare values as they would be stored in a local file
+	 * @param include       selects the parameters to index
+	 * @param keyIdMapper   if not null, applied to the KMS key ID of each SecureString to compare with it
+	 * @return entries by relative name
+	 */
+	private Map<String, ParameterDiff.Entry> indexPath(final String parameterPath, final boolean recursive,
+			final boolean unescape, final Predicate<Parameter> include, final UnaryOperator<String> keyIdMapper) {
+		final Map<String, ParameterDiff.Entry> entries = new LinkedHashMap<>();
+		client.forEachPage(parameterPath, recursive, isDecryptDiff(), page -> {
+			final Map<String, String> keyIds = keyIdMapper == null ? Collections.emptyMap()
+					: client.describeKeyIds(page.stream()
+					.filter(it -> ParameterType.fromValue(it.getType()) == ParameterType.SecureString)
+					.map(Parameter::getName)
+					.collect(Collectors.toList()));
+			for (Parameter parameter : page) {
+				if (parameter.getName().startsWith(parameterPath + "/") && include.test(parameter)) {
+					final String value = unescape ? SsmpleClient.unescapeValueAfterGet(parameter.getValue()) : parameter.getValue();
+					ParameterDiff.Entry entry = ParameterDiff.Entry.of(parameter.getType(), value, isDecryptDiff());
+					if (keyIdMapper != null && ParameterType.fromValue(parameter.getType()) == ParameterType.SecureString) {
+						entry = entry.withKeyId(keyIdMapper.apply(keyIds.get(parameter.getName())));
+					}
+					entries.put(parameter.getName().substring(parameterPath.length() + 1), entry);
+				}
+			}
+		});
+		return entries;
+	}
+
+	// --------------
+	// EXPORT methods
+	// --------------
+
+	private void doExport() throws IOException {
+		if (this.getParamPathPrefixes().size() != 1) {
+			throw new IllegalArgumentException("export command requires exactly one -s/--starts-with argument.");
+		}
+
+		final String parameterPath = trimTrailingSlash(this.getParamPathPrefixes().get(0));
+		long exported = 0L;
+		try (NdjsonWriter out = new NdjsonWriter(openOutput())) {
+			// while one page is written, the next page is already being described.
+			CompletableFuture<DescribeParametersResult> next = CompletableFuture.supplyAsync(
+					() -> client.describePath(parameterPath, true, null), executor);
+			while (next != null) {
+				final DescribeParametersResult page = join(next);
+				final String nextToken = page.getNextToken();
+				next = nextToken == null || nextToken.isEmpty() ? null : CompletableFuture.supplyAsync(
+						() -> client.describePath(parameterPath, true, nextToken), executor);
+				exported += exportPage(page.getParameters(), out);
+			}
+		}
+		stderr.println(String.format("%s: %d parameters", label("export"), exported));
+	}
+
+	private OutputStream openOutput() throws IOException {
+		if (getOutputFile() == null) {
+			return new FilterOutputStream(stdout) {
+				@Override
+				public void write(final byte[] b, final int off, final int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					// leave stdout open
+					flush();
+				}
+			};
+		}
+		final OutputStream fileOut = new FileOutputStream(getOutputFile());
+		if (getOutputFile().getName().endsWith(".gz")) {
+			return new GZIPOutputStream(fileOut, 65536);
+		}
+		return fileOut;
+	}
+
+	private int exportPage(final List<ParameterMetadata> described, final NdjsonWriter out) throws IOException {
+		final List<ParameterMetadata> page = described.stream()
+				.filter(meta -> inShard(meta.getName()))
+				.collect(Collectors.toList());
+		final Map<String, String> values = new ConcurrentHashMap<>();
+		if (isExportValues()) {
+			final List<String> names = page.stream()
+					.filter(meta -> !isNoStoreSecureString()
+							|| ParameterType.fromValue(meta.getType()) != ParameterType.SecureString)
+					.map(ParameterMetadata::getName)
+					.collect(Collectors.toList());
+			final CompletableFuture<?>[] batches = SsmpleClient.ofSubLists(names, SsmpleClient.MAX_NAMES_PER_REQUEST)
+					.map(batch -> CompletableFuture.runAsync(() -> values.putAll(client.decryptValues(batch)), executor))
+					.toArray(CompletableFuture<?>[]::new);
+			join(CompletableFuture.allOf(batches));
+		}
+		for (ParameterMetadata meta : page) {
+			final Map<String, Object> record = new LinkedHashMap<>();
+			record.put("name", meta.getName());
+			record.put("type", meta.getType());
+			if (meta.getKeyId() != null) {
+				record.put("keyId", client.getAliasForKeyId(meta.getKeyId()));
+			}
+			record.put("version", meta.getVersion());
+			if (values.containsKey(meta.getName())) {
+				// import escapes values again, so write them as get would.
+				record.put("value", SsmpleClient.unescapeValueAfterGet(values.get(meta.getName())));
+			}
+			out.write(record);
+		}
+		return page.size();
+	}
+
+	// --------------
+	// IMPORT methods
+	// --------------
+
+	private void doImport() throws IOException {
+		if (this.getParamPathPrefixes().size() > 1) {
+			throw new IllegalArgumentException("import command accepts at most one -s/--starts-with argument.");
+		}
+
+		final String prefix = this.getParamPathPrefixes().isEmpty() ? null
+				: trimTrailingSlash(this.getParamPathPrefixes().get(0));
+		final ObjectMapper mapper = new ObjectMapper();
+		// line numbers of puts still in flight, so a failed put can be reported by line.
+		final Map<PutParameterRequest, Long> pendingLines = Collections.synchronizedMap(new IdentityHashMap<>());
+		long invalid = 0L;
+
+		openJournal();
+		final PutPipeline pipeline = newJournaledPipeline();
+		boolean completed = false;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(openInput(), Charset.forName("UTF-8")))) {
+			String line;
+			long lineNumber = 0L;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				final PutParameterRequest req;
+				try {
+					req = toImportRequest(mapper.readTree(line));
+				} catch (IOException | IllegalArgumentException e) {
+					invalid++;
+					stderr.println(String.format("import: line %d: %s", lineNumber, e.getMessage()));
+					continue;
+				}
+				if (!inShard(req.getName())) {
+					continue;
+				}
+				if ((prefix != null && !req.getName().startsWith(prefix + "/"))
+						|| (isNoPutSecureString() && ParameterType.SecureString.toString().equals(req.getType()))) {
+					pipeline.skip();
+					continue;
+				}
+				final String hash = PutJournal.hashPut(req.getType(), req.getKeyId(), req.getValue());
+				if (putJournal != null && putJournal.isPutComplete(req.getName(), hash)) {
+					pipeline.skip();
+					continue;
+				}
+				pendingLines.put(req, lineNumber);
+				pipeline.submit(req, done -> {
+					pendingLines.remove(done);
+					if (putJournal != null) {
+						putJournal.recordPut(done.getName(), hash);
+					}
+				});
+			}
+			completed = true;
+		} finally {
+			pipeline.awaitCompletion();
+			if (this.putJournal != null) {
+				this.putJournal.finish(completed && pipeline.getFailures().isEmpty() && invalid == 0L);
+			}
+		}
+
+		for (PutPipeline.Failure failure : pipeline.getFailures()) {
+			stderr.println(String.format("import: line %d: %s: %s", pendingLines.getOrDefault(failure.getRequest(), 0L),
+					failure.getName(), failure.getCause().getMessage()));
+		}
+		stderr.println(String.format("%s: %d written, %d skipped, %d failed, %d invalid", label("import"),
+				pipeline.getWritten(), pipeline.getSkipped(), pipeline.getFailures().size(), invalid));
+		if (!pipeline.getFailures().isEmpty() || invalid > 0L) {
+			throw new IOException(String.format("import: %d puts failed, %d lines invalid",
+					pipeline.getFailures().size(), invalid));
+		}
+	}
+
+	private InputStream openInput() throws IOException {
+		if (getInputFile() == null) {
+			if (getStdin() == null) {
+				throw new IllegalArgumentException("import has no standard input here; pass --input <file>.");
+			}
+			return getStdin();
+		}
+		final InputStream fileIn = new FileInputStream(getInputFile());
+		if (getInputFile().getName().endsWith(".gz")) {
+			return new GZIPInputStream(fileIn, 65536);
+		}
+		return fileIn;
+	}
+
+	/**
+	 * Build a put request from one export record.
+	 *
+	 * @param record a record with name and value, and optional type and keyId
+	 * @return the put request
+	 * @throws IllegalArgumentException if the record is incomplete
+	 */
+	private PutParameterRequest toImportRequest(final JsonNode record) {
+		if (!record.isObject()) {
+			throw new IllegalArgumentException("expected a JSON object");
+		}
+		if (!record.path("name").isTextual() || record.path("name").asText().isEmpty()) {
+			throw new IllegalArgumentException("missing name");
+		}
+		if (!record.path("value").isTextual()) {
+			throw new IllegalArgumentException("missing value for " + record.path("name").asText());
+		}
+		final PutParameterRequest req = new PutParameterRequest()
+				.withName(record.path("name").asText())
+				.withType(ParameterType.fromValue(record.path("type").asText(ParameterType.String.toString())))
+				.withValue(SsmpleClient.escapeValueBeforePut(record.path("value").asText()))
+				.withOverwrite(isOverwritePut());
+
+		final Optional<String> keyId = Stream.of(Optional.ofNullable(getKeyIdPut()),
+				Optional.ofNullable(record.path("keyId").textValue()))
+				.filter(Optional::isPresent)
+				.map(Optional::get)
+				.map(client::derefAlias)
+				.findFirst();
+		if (getKeyIdPut() != null || ParameterType.SecureString.toString().equals(req.getType())) {
+			req.withType(ParameterType.SecureString);
+			keyId.ifPresent(req::withKeyId);
+		}
+		return req;
+	}
+
+	// --------------
+	// common methods
+	// --------------
+
+	/**
+	 * Parse every selected file concurrently on the file pool.
+	 *
+	 * @throws IOException if any file fails to load
+	 */
+	private void loadFileStores() throws IOException {
+		final Map<String, CompletableFuture<FileStore>> loading = new LinkedHashMap<>();
+		for (String filename : getResolvedFilenames()) {
+			loading.put(filename, CompletableFuture.supplyAsync(() -> loadFileStore(filename), fileExecutor));
+		}
+		for (Map.Entry<String, CompletableFuture<FileStore>> entry : loading.entrySet()) {
+			this.fileStores.put(entry.getKey(), join(entry.getValue()));
+		}
+	}
+
+	private FileStore loadFileStore(final String filename) {
+		try {
+			FileStore fileStore = AbstractFileStore.getStore(getConfDir(), filename);
+			final FileStoreLock lock = fileStore.lock(true, getLockTimeout());
+			try {
+				fileStore.load();
+			} finally {
+				lock.close();
+			}
+			return fileStore;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Merge fetched bindings into a file under an exclusive lock, reloading it first so that keys saved by another
+	 * process since this run started are kept.
+	 *
+	 * @param filename the file name
+	 * @param bindings the fetched bindings, where any {@link SecretBuffer} is cleared before returning
+	 */
+	private void mergeFileStore(final String filename, final Map<String, ? extends CharSequence> bindings) {
+		try {
+			FileStore fileStore = AbstractFileStore.getStore(getConfDir(), filename);
+			final FileStoreLock lock = fileStore.lock(false, getLockTimeout());
+			try {
+				fileStore.load();
+				bindings.forEach((key, value) -> {
+					if (value instanceof SecretBuffer) {
+						fileStore.putSecret(key, (SecretBuffer) value);
+					} else {
+						fileStore.putParam(key, value.toString());
+					}
+				});
+				if (!fileStore.getKeys().isEmpty()) {
+					fileStore.save();
+				}
+			} finally {
+				lock.close();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			bindings.values().stream()
+					.filter(SecretBuffer.class::isInstance)
+					.forEach(value -> ((SecretBuffer) value).clear());
+		}
+	}
+
+	/**
+	 * Print a summary of pipeline results to stderr, and fail if any put failed.
+	 *
+	 * @param command the command name for the summary
+	 * @param pipeline the completed pipeline
+	 * @throws IOException if any put failed
+	 */
+	private void reportPipeline(final String command, final PutPipeline pipeline) throws IOException {
+		final List<PutPipeline.Failure> failures = pipeline.getFailures();
+		for (PutPipeline.Failure failure : failures) {
+			stderr.println(String.format("%s failed: %s: %s", command, failure.getName(), failure.getCause().getMessage()));
+		}
+		stderr.println(String.format("%s: %d written, %d skipped, %d failed",
+				command, pipeline.getWritten(), pipeline.getSkipped(), failures.size()));
+		if (!failures.isEmpty()) {
+			throw new IOException(String.format("%s: %d puts failed", command, failures.size()));
+		}
+	}
+
+	/**
+	 * List the selected parameters directly under a path. SecureString values are left encrypted, which is all that
+	 * delete and clear need, so listing costs no KMS requests.
+	 *
+	 * @param parameterPath the path
+	 * @return parameters by name
+	 */
+	private Map<String, Parameter> findSelectedParametersForPath(final String parameterPath) {
+		final Map<String, Parameter> accumulator = new HashMap<>();
+		client.forEachPage(parameterPath, false, false, getSelector().toParameterFilters(), page -> {
+			for (Parameter parameter : page) {
+				if (isClearableParameter(parameterPath, parameter.getName()) && getSelector()
+						.matches(parameter.getName().substring(parameterPath.length() + 1), parameter)) {
+					accumulator.put(parameter.getName(), parameter);
+				}
+			}
+		});
+		return accumulator;
+	}
+
+	/**
+	 * Make one cheap request so that DNS, the TLS handshake and credential lookup are done before the first real
+	 * request. Failures are ignored, since the real request will report them.
+	 */
+	private void warmUpConnection() {
+		try {
+			this.ssm.describeParameters(new DescribeParametersRequest().withMaxResults(1));
+		} catch (RuntimeException e) {
+			// ignored
+		}
+	}
+
+	private boolean inShard(final String key) {
+		return getShard() == null || getShard().contains(key);
+	}
+
+	private String label(final String command) {
+		return getShard() == null ? command : command + " [shard " + getShard() + "]";
+	}
+
+	private static int parseInt(final String opt, final String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Invalid integer for %s: %s", opt, value));
+		}
+	}
+
+	private static double parseDouble(final String opt, final String value) {
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Invalid number for %s: %s", opt, value));
+		}
+	}
+
+	/**
+	 * CLI entry point. {@code serve [socket]} starts a resident server instead of running a command.
+	 *
+	 * @param args the standard array of command line arguments.
+	 * @throws IOException when something breaks
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0 && "serve".equals(args[0])) {
+			ResidentServer.serve(args.length > 1 ? new File(args[1]) : ResidentSession.getDefaultSocketFile());
+			return;
+		}
+		parseArgs(Arrays.asList(args), null).doMain();
+	}
+
+	/**
+	 * Parse and validate a command line.
+	 *
+	 * @param argList    the command line arguments
+	 * @param workingDir for a command forwarded to a resident server, the client's directory, which relative file
+	 *                   arguments are resolved against; or null for this process's own command line
+	 * @return the configured command, ready for {@link #doMain()}
+	 */
+	static Main parseArgs(final List<String> argList, final File workingDir) {
+		Main spp = new Main(AWSSimpleSystemsManagementClientBuilder.standard(), AWSKMSClientBuilder.standard());
+		if (workingDir != null) {
+			spp.setConfDir(workingDir);
+		}
+
+		Iterator<String> opts = argList.iterator();
 		while (opts.hasNext()) {
 			final String opt = opts.next();
 			final boolean isNoSwitch = opt.startsWith("--no-");
 			switch (isNoSwitch ? opt.replaceFirst("^--no-", "--") : opt) {
 			case "-p":
 			case "--profile":
-				System.setProperty("aws.profile", opts.next());
-				spp.getSsmBuilder().setCredentials(new DefaultAWSCredentialsProviderChain());
-				spp.getKmsBuilder().setCredentials(new DefaultAWSCredentialsProviderChain());
+				spp.setProfile(opts.next());
+				if (workingDir == null) {
+					System.setProperty("aws.profile", spp.getProfile());
+					spp.getSsmBuilder().setCredentials(new DefaultAWSCredentialsProviderChain());
+					spp.getKmsBuilder().setCredentials(new DefaultAWSCredentialsProviderChain());
+				}
 				break;
 			case "-r":
 			case "--region":
@@ -692,7 +2137,7 @@ class Main {
 				break;
 			case "-C":
 			case "--conf-dir":
-				spp.setConfDir(new File(opts.next()));
+				spp.setConfDir(resolveFile(workingDir, opts.next()));
 				break;
 			case "-f":
 			case "--filename":
@@ -710,6 +2155,111 @@ class Main {
 			case "--overwrite-put":
 				spp.setOverwritePut(!isNoSwitch);
 				break;
+			case "-d":
+			case "--destination":
+				spp.setDestinationPrefix(opts.next());
+				break;
+			case "--key-id-map":
+				String mapping = opts.next();
+				if (!mapping.contains("=")) {
+					throw new IllegalArgumentException(String.format("Invalid mapping for %s: %s, expected source=destination", opt, mapping));
+				}
+				spp.getKeyIdMap().put(mapping.substring(0, mapping.indexOf('=')), mapping.substring(mapping.indexOf('=') + 1));
+				break;
+			case "-n":
+			case "--dry-run":
+				spp.setDryRun(!isNoSwitch);
+				break;
+			case "--decrypt":
+				spp.setDecryptDiff(!isNoSwitch);
+				break;
+			case "--hedge-percentile":
+				spp.setHedgePercentile(parseDouble(opt, opts.next()));
+				break;
+			case "--hedge-budget":
+				spp.setHedgeBudget(parseDouble(opt, opts.next()));
+				break;
+			case "--output":
+				spp.setOutputFile(resolveFile(workingDir, opts.next()));
+				break;
+			case "--input":
+				spp.setInputFile(resolveFile(workingDir, opts.next()));
+				break;
+			case "--with-values":
+				spp.setExportValues(!isNoSwitch);
+				break;
+			case "-j":
+			case "--parallelism":
+				String parallelismString = opts.next();
+				try {
+					spp.setParallelism(Integer.valueOf(parallelismString));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(String.format("Invalid integer for %s: %s", opt, parallelismString));
+				}
+				break;
+			case "--max-connections":
+				spp.setMaxConnections(parseInt(opt, opts.next()));
+				break;
+			case "--tcp-keep-alive":
+				spp.getClientConfiguration().setUseTcpKeepAlive(!isNoSwitch);
+				break;
+			case "--connection-ttl":
+				spp.getClientConfiguration().setConnectionTTL(parseInt(opt, opts.next()));
+				break;
+			case "--connection-timeout":
+				spp.getClientConfiguration().setConnectionTimeout(parseInt(opt, opts.next()));
+				break;
+			case "--request-timeout":
+				spp.getClientConfiguration().setRequestTimeout(parseInt(opt, opts.next()));
+				break;
+			case "--socket-timeout":
+				spp.getClientConfiguration().setSocketTimeout(parseInt(opt, opts.next()));
+				break;
+			case "--gzip":
+				spp.getClientConfiguration().setUseGzip(!isNoSwitch);
+				break;
+			case "--warm-up":
+				spp.setWarmUp(!isNoSwitch);
+				break;
+			case "--include":
+				spp.setSelector(spp.getSelector().withInclude(opts.next()));
+				break;
+			case "--exclude":
+				spp.setSelector(spp.getSelector().withExclude(opts.next()));
+				break;
+			case "--type":
+				String typeString = opts.next();
+				try {
+					spp.setSelector(spp.getSelector().withType(ParameterType.fromValue(typeString)));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException(String.format("Invalid parameter type for %s: %s", opt, typeString));
+				}
+				break;
+			case "--label":
+				spp.setSelector(spp.getSelector().withLabel(opts.next()));
+				break;
+			case "--scrub-secrets":
+				spp.setScrubSecrets(!isNoSwitch);
+				break;
+			case "--packed":
+				spp.setPacked(!isNoSwitch);
+				break;
+			case "--packed-tier":
+				spp.setPackedTier(ParameterTier.fromValue(opts.next()));
+				break;
+			case "--compress":
+				spp.setCompressPacks(!isNoSwitch);
+				break;
+			case "--lock-timeout":
+				spp.setLockTimeout(parseInt(opt, opts.next()));
+				break;
+			case "--shard":
+				spp.setShard(Shard.parse(opts.next()));
+				break;
+			case "-J":
+			case "--journal":
+				spp.setJournalFile(resolveFile(workingDir, opts.next()));
+				break;
 			case "--clear-on-put":
 				spp.setClearOnPut(!isNoSwitch);
 				break;
@@ -731,19 +2281,77 @@ class Main {
 			case "clear":
 				spp.setSsmCmd(SsmCmd.CLEAR);
 				break;
+			case "copy":
+				spp.setSsmCmd(SsmCmd.COPY);
+				break;
+			case "diff":
+				spp.setSsmCmd(SsmCmd.DIFF);
+				break;
+			case "export":
+				spp.setSsmCmd(SsmCmd.EXPORT);
+				break;
+			case "import":
+				spp.setSsmCmd(SsmCmd.IMPORT);
+				break;
 			default:
 				throw new IllegalArgumentException(String.format("Unrecognized option %s.", opt));
 			}
 		}
 
-		if (spp.getParamPathPrefixes().isEmpty()) {
+		if (spp.getParamPathPrefixes().isEmpty() && spp.getSsmCmd() != SsmCmd.IMPORT) {
 			throw new IllegalArgumentException("At least one -s/--starts-with path is required, like /ecs/dev/myapp");
 		}
 
-		if (spp.getFilenames().isEmpty()) {
+		if (spp.getFilenames().isEmpty() && !spp.isPrefixCommand()) {
 			throw new IllegalArgumentException("At least one -f/--filename argument is required, like instance.properties");
 		}
 
-		spp.doMain();
+		if (!spp.getSelector().isAll() && spp.getSsmCmd() != SsmCmd.GET && spp.getSsmCmd() != SsmCmd.DELETE
+				&& spp.getSsmCmd() != SsmCmd.CLEAR) {
+			throw new IllegalArgumentException("--include, --exclude, --type and --label only apply to get, delete and clear.");
+		}
+
+		if (spp.isPacked() && spp.getSsmCmd() != SsmCmd.GET && spp.getSsmCmd() != SsmCmd.PUT
+				&& spp.getSsmCmd() != SsmCmd.DELETE && spp.getSsmCmd() != SsmCmd.CLEAR) {
+			throw new IllegalArgumentException("--packed only applies to get, put, delete and clear.");
+		}
+
+		if (spp.isPacked() && (!spp.getSelector().isAll() || spp.isScrubSecrets())) {
+			throw new IllegalArgumentException("--packed can't be combined with key selection or --scrub-secrets.");
+		}
+
+		if (spp.getProfile() != null && workingDir != null) {
+			spp.applyProfile();
+		}
+
+		return spp;
+	}
+
+	/**
+	 * Use the -p profile for credentials and region without setting the process-wide aws.profile property, which
+	 * other commands running in a resident server would see. The credential chain is the default one, in its order,
+	 * with the profile named explicitly.
+	 */
+	private void applyProfile() {
+		final AWSCredentialsProvider credentials = new AWSCredentialsProviderChain(
+				new EnvironmentVariableCredentialsProvider(),
+				new SystemPropertiesCredentialsProvider(),
+				new ProfileCredentialsProvider(getProfile()),
+				new EC2ContainerCredentialsProviderWrapper());
+		this.ssmBuilder.setCredentials(credentials);
+		this.kmsBuilder.setCredentials(credentials);
+		// -r and the region environment variables still come first, as they do in the default region chain.
+		if (this.ssmBuilder.getRegion() == null && new AwsEnvVarOverrideRegionProvider().getRegion() == null) {
+			final String region = new AwsProfileRegionProvider(getProfile()).getRegion();
+			if (region != null) {
+				this.ssmBuilder.setRegion(region);
+				this.kmsBuilder.setRegion(region);
+			}
+		}
+	}
+
+	private static File resolveFile(final File workingDir, final String path) {
+		final File file = new File(path);
+		return workingDir == null || file.isAbsolute() ? file : new File(workingDir, path);
 	}
 }
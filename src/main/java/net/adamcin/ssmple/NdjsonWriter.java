@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package net.adamcin.ssmple;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes one JSON object per line. Records are written as they are produced so output streams for large trees.
+ */
+class NdjsonWriter implements Closeable {
+
+	private final ObjectMapper mapper = new ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+	private final Writer writer;
+
+	NdjsonWriter(final OutputStream out) {
+		this.writer = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+	}
+
+	/**
+	 * Write a record as a single line.
+	 *
+	 * @param record the record fields, in output order
+	 * @throws IOException if the write fails
+	 */
+	synchronized void write(final Map<String, ?> record) throws IOException {
+		mapper.writeValue(writer, record);
+		writer.write('\n');
+	}
+
+	synchronized void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package net.adamcin.ssmple;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterType;
+
+/**
+ * Compares a desired set of parameters against the current set, keyed by name relative to a parameter path. Values are
+ * reduced to hashes as they are read, so neither side keeps values in memory and no value is ever printed.
+ */
+final class ParameterDiff {
+
+	/**
+	 * The desired parameter does not exist.
+	 */
+	static final String OP_ADD = "add";
+
+	/**
+	 * The current parameter is not desired.
+	 */
+	static final String OP_REMOVE = "remove";
+
+	/**
+	 * The type or value differs.
+	 */
+	static final String OP_CHANGE = "change";
+
+	/**
+	 * Both sides are SecureStrings that were not decrypted, so their values could not be compared.
+	 */
+	static final String OP_UNVERIFIED = "unverified";
+
+	/**
+	 * The parameter exists, and the put would fail because it may not be overwritten.
+	 */
+	static final String OP_CONFLICT = "conflict";
+
+	/**
+	 * The comparable state of one parameter.
+	 */
+	static final class Entry {
+		private final String type;
+
+		private final String valueHash;
+
+		private final String keyId;
+
+		private Entry(final String type, final String valueHash, final String keyId) {
+			this.type = type;
+			this.valueHash = valueHash;
+			this.keyId = keyId;
+		}
+
+		/**
+		 * Create an entry.
+		 *
+		 * @param type      the parameter type
+		 * @param value     the plaintext value
+		 * @param decrypted false if a SecureString value is ciphertext and can't be compared
+		 * @return the entry
+		 */
+		static Entry of(final String type, final String value, final boolean decrypted) {
+			if (!decrypted && ParameterType.fromValue(type) == ParameterType.SecureString) {
+				return new Entry(type, null, null);
+			}
+			return new Entry(type, Hashes.sha256Hex(value), null);
+		}
+
+		/**
+		 * Copy this entry with a KMS key, which is then compared too whenever both sides have one.
+		 *
+		 * @param keyId the key ID, or null
+		 * @return the new entry
+		 */
+		Entry withKeyId(final String keyId) {
+			return new Entry(type, valueHash, keyId);
+		}
+
+		String getType() {
+			return type;
+		}
+	}
+
+	private final NdjsonWriter out;
+
+	private final boolean overwrite;
+
+	private final boolean removals;
+
+	private final Map<String, Integer> counts = new LinkedHashMap<>();
+
+	ParameterDiff(final NdjsonWriter out) {
+		this(out, true, true);
+	}
+
+	/**
+	 * Create a diff.
+	 *
+	 * @param out       the output
+	 * @param overwrite false to report every desired parameter that already exists as a conflict
+	 * @param removals  false to ignore current parameters that are not desired, as a copy leaves them alone
+	 */
+	ParameterDiff(final NdjsonWriter out, final boolean overwrite, final boolean removals) {
+		this.out = out;
+		this.overwrite = overwrite;
+		this.removals = removals;
+		counts.put(OP_ADD, 0);
+		if (removals) {
+			counts.put(OP_REMOVE, 0);
+		}
+		for (String op : overwrite ? new String[]{OP_CHANGE, OP_UNVERIFIED} : new String[]{OP_CONFLICT}) {
+			counts.put(op, 0);
+		}
+	}
+
+	/**
+	 * Compare one path and write a record for each difference.
+	 *
+	 * @param currentPath the parameter path of the current side, used to print full names
+	 * @param desired     desired entries by relative name
+	 * @param current     current entries by relative name
+	 * @throws IOException if the output fails
+	 */
+	void compare(final String currentPath, final Map<String, Entry> desired, final Map<String, Entry> current)
+			throws IOException {
+		for (Map.Entry<String, Entry> want : desired.entrySet()) {
+			final Entry have = current.get(want.getKey());
+			final String name = currentPath + "/" + want.getKey();
+			if (have == null) {
+				emit(OP_ADD, name, want.getValue().type);
+			} else if (!overwrite) {
+				emit(OP_CONFLICT, name, want.getValue().type);
+			} else if (!want.getValue().type.equals(have.type)) {
+				emit(OP_CHANGE, name, want.getValue().type);
+			} else if (want.getValue().keyId != null && have.keyId != null && !want.getValue().keyId.equals(have.keyId)) {
+				emit(OP_CHANGE, name, want.getValue().type);
+			} else if (want.getValue().valueHash == null || have.valueHash == null) {
+				emit(OP_UNVERIFIED, name, want.getValue().type);
+			} else if (!want.getValue().valueHash.equals(have.valueHash)) {
+				emit(OP_CHANGE, name, want.getValue().type);
+			}
+		}
+		for (Map.Entry<String, Entry> have : current.entrySet()) {
+			if (removals && !desired.containsKey(have.getKey())) {
+				emit(OP_REMOVE, currentPath + "/" + have.getKey(), have.getValue().type);
+			}
+		}
+		out.flush();
+	}
+
+	private void emit(final String op, final String name, final String type) throws IOException {
+		counts.merge(op, 1, Integer::sum);
+		final Map<String, String> record = new LinkedHashMap<>();
+		record.put("op", op);
+		record.put("name", name);
+		record.put("type", type);
+		out.write(record);
+	}
+
+	/**
+	 * Get the count of each difference written so far.
+	 *
+	 * @return map of op to count
+	 */
+	Map<String, Integer> getCounts() {
+		return counts;
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagement;
+import com.amazonaws.services.simplesystemsmanagement.model.DeleteParametersRequest;
+import com.amazonaws.services.simplesystemsmanagement.model.GetParametersByPathRequest;
+import com.amazonaws.services.simplesystemsmanagement.model.GetParametersByPathResult;
+import com.amazonaws.services.simplesystemsmanagement.model.GetParametersRequest;
+import com.amazonaws.services.simplesystemsmanagement.model.Parameter;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterAlreadyExistsException;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterTier;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterType;
+import com.amazonaws.services.simplesystemsmanagement.model.PutParameterRequest;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Stores all the bindings of one file as a single parameter, named like the file's parameter path, instead of one
+ * parameter per key. The value is a JSON object, optionally gzipped and base64-encoded, behind a one-line header:
+ * <pre>
+ * ssmple-pack:v1:&lt;json|gzip&gt;:&lt;chunks&gt;:&lt;sha256 of payload&gt;
+ * </pre>
+ * A payload too large for one parameter continues in {@code <name>/_chunks/1} and so on. Chunks are written before
+ * the head, and the hash lets a reader detect a head and chunks from different writes.
+ */
+final class ParameterPack {
+
+	/**
+	 * Path under the head for continuation chunks.
+	 */
+	static final String CHUNKS_PATH = "/_chunks";
+
+	private static final String HEADER_PREFIX = "ssmple-pack:v1:";
+
+	private static final String ENCODING_JSON = "json";
+
+	private static final String ENCODING_GZIP = "gzip";
+
+	/**
+	 * Room left in the head for the header line, which is well under this.
+	 */
+	private static final int HEADER_RESERVE = 128;
+
+	private static final int STANDARD_VALUE_LIMIT = 4096;
+
+	private static final int ADVANCED_VALUE_LIMIT = 8192;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final AWSSimpleSystemsManagement ssm;
+
+	private final ParameterTier tier;
+
+	private final boolean compress;
+
+	private final ObjectMapper mapper = new ObjectMapper().enable(JsonGenerator.Feature.ESCAPE_NON_ASCII);
+
+	ParameterPack(final AWSSimpleSystemsManagement ssm, final ParameterTier tier, final boolean compress) {
+		this.ssm = ssm;
+		this.tier = tier;
+		this.compress = compress;
+	}
+
+	/**
+	 * Read the packs with the given head names, fetching up to ten heads per request.
+	 *
+	 * @param heads   head parameter names
+	 * @param decrypt false to skip packs stored as SecureStrings instead of decrypting them
+	 * @return bindings by head name, omitting heads that don't exist
+	 * @throws IOException if a pack can't be decoded, or changes while it is read
+	 */
+	Map<String, Map<String, String>> readAll(final List<String> heads, final boolean decrypt) throws IOException {
+		final Map<String, Parameter> found = new LinkedHashMap<>();
+		for (List<String> batch : SsmpleClient.ofSubLists(heads, SsmpleClient.MAX_NAMES_PER_REQUEST)
+				.collect(Collectors.toList())) {
+			for (Parameter parameter : ssm.getParameters(new GetParametersRequest()
+					.withNames(batch).withWithDecryption(decrypt)).getParameters()) {
+				found.put(parameter.getName(), parameter);
+			}
+		}
+		final Map<String, Map<String, String>> packs = new LinkedHashMap<>();
+		for (String head : heads) {
+			final Parameter parameter = found.get(head);
+			if (parameter == null || (!decrypt && SsmpleClient.isSecureString(parameter))) {
+				continue;
+			}
+			try {
+				packs.put(head, decode(head, parameter.getValue(), decrypt));
+			} catch (TornReadException e) {
+				// the pack was rewritten between reading the head and its chunks, so read it once more.
+				packs.put(head, decode(head, readHead(head, decrypt), decrypt));
+			}
+		}
+		return packs;
+	}
+
+	/**
+	 * Write a pack, replacing any previous one and deleting chunks it no longer needs.
+	 *
+	 * @param head      the head parameter name
+	 * @param bindings  the bindings to store
+	 * @param keyId     the KMS key to store the pack as a SecureString, or null for a String
+	 * @param overwrite false to fail if the head already exists
+	 * @throws IOException if the bindings can't be encoded
+	 */
+	void write(final String head, final Map<String, String> bindings, final String keyId, final boolean overwrite)
+			throws IOException {
+		final String payload = encode(bindings);
+		final int limit = tier == ParameterTier.Standard ? STANDARD_VALUE_LIMIT : ADVANCED_VALUE_LIMIT;
+		final int headCapacity = limit - HEADER_RESERVE;
+		final int chunkCount = payload.length() <= headCapacity ? 1
+				: 1 + (payload.length() - headCapacity + limit - 1) / limit;
+		if (chunkCount > 1 && !overwrite
+				&& !ssm.getParameters(new GetParametersRequest().withNames(head)).getParameters().isEmpty()) {
+			// checked up front, since the chunks of the existing pack would otherwise be overwritten first.
+			throw new ParameterAlreadyExistsException("The parameter already exists: " + head);
+		}
+		for (int i = 1; i < chunkCount; i++) {
+			final int start = headCapacity + (i - 1) * limit;
+			ssm.putParameter(newPut(chunkName(head, i),
+					payload.substring(start, Math.min(payload.length(), start + limit)), keyId).withOverwrite(true));
+		}
+		final String header = HEADER_PREFIX + (compress ? ENCODING_GZIP : ENCODING_JSON) + ":" + chunkCount + ":"
+				+ Hashes.sha256Hex(payload) + "\n";
+		ssm.putParameter(newPut(head, header + payload.substring(0, Math.min(payload.length(), headCapacity)), keyId)
+				.withOverwrite(overwrite));
+		deleteChunks(head, chunkCount);
+	}
+
+	/**
+	 * Delete a pack and its chunks.
+	 *
+	 * @param head the head parameter name
+	 * @return the number of parameters deleted
+	 */
+	int delete(final String head) {
+		final int deleted = ssm.deleteParameters(new DeleteParametersRequest().withNames(head))
+				.getDeletedParameters().size();
+		return deleted + deleteChunks(head, 1);
+	}
+
+	/**
+	 * Hash what {@link #write(String, Map, String, boolean)} would store, for the put journal.
+	 *
+	 * @param bindings the bindings
+	 * @return the hash of the encoded payload
+	 * @throws IOException if the bindings can't be encoded
+	 */
+	String hash(final Map<String, String> bindings) throws IOException {
+		return Hashes.sha256Hex(tier.toString(), encode(bindings));
+	}
+
+	private static String chunkName(final String head, final int index) {
+		return head + CHUNKS_PATH + "/" + index;
+	}
+
+	private PutParameterRequest newPut(final String name, final String value, final String keyId) {
+		final PutParameterRequest req = new PutParameterRequest()
+				.withName(name)
+				.withValue(value)
+				.withTier(tier)
+				.withType(ParameterType.String);
+		if (keyId != null) {
+			req.withType(ParameterType.SecureString).withKeyId(keyId);
+		}
+		return req;
+	}
+
+	private int deleteChunks(final String head, final int keep) {
+		final List<String> stale = new ArrayList<>();
+		String nextToken = null;
+		do {
+			final GetParametersByPathResult result = ssm.getParametersByPath(new GetParametersByPathRequest()
+					.withPath(head + CHUNKS_PATH)
+					.withNextToken(nextToken));
+			for (Parameter chunk : result.getParameters()) {
+				final String index = chunk.getName().substring(head.length() + CHUNKS_PATH.length() + 1);
+				// at most nine digits, so that a stray name can't overflow the index.
+				if (!index.matches("[0-9]{1,9}") || Integer.parseInt(index) >= keep) {
+					stale.add(chunk.getName());
+				}
+			}
+			nextToken = result.getNextToken();
+		} while (nextToken != null && !nextToken.isEmpty());
+		return SsmpleClient.ofSubLists(stale, SsmpleClient.MAX_NAMES_PER_REQUEST)
+				.mapToInt(batch -> ssm.deleteParameters(new DeleteParametersRequest().withNames(batch))
+						.getDeletedParameters().size())
+				.sum();
+	}
+
+	private String readHead(final String head, final boolean decrypt) throws IOException {
+		final List<Parameter> found = ssm.getParameters(new GetParametersRequest()
+				.withNames(head).withWithDecryption(decrypt)).getParameters();
+		if (found.isEmpty()) {
+			throw new IOException("Packed parameter was deleted while it was read: " + head);
+		}
+		return found.get(0).getValue();
+	}
+
+	private Map<String, String> decode(final String head, final String value, final boolean decrypt)
+			throws IOException {
+		final int newline = value.indexOf('\n');
+		if (!value.startsWith(HEADER_PREFIX) || newline < 0) {
+			throw new IOException("Not a packed parameter: " + head);
+		}
+		final String[] header = value.substring(HEADER_PREFIX.length(), newline).split(":");
+		if (header.length != 3) {
+			throw new IOException("Malformed pack header: " + head);
+		}
+		final int chunkCount;
+		try {
+			chunkCount = Integer.parseInt(header[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed pack header: " + head, e);
+		}
+		if (chunkCount < 1) {
+			throw new IOException("Malformed pack header: " + head);
+		}
+		final StringBuilder payload = new StringBuilder(value.substring(newline + 1));
+		if (chunkCount > 1) {
+			final List<String> chunkNames = new ArrayList<>();
+			for (int i = 1; i < chunkCount; i++) {
+				chunkNames.add(chunkName(head, i));
+			}
+			final Map<String, String> chunks = new LinkedHashMap<>();
+			for (List<String> batch : SsmpleClient.ofSubLists(chunkNames, SsmpleClient.MAX_NAMES_PER_REQUEST)
+					.collect(Collectors.toList())) {
+				for (Parameter chunk : ssm.getParameters(new GetParametersRequest()
+						.withNames(batch).withWithDecryption(decrypt)).getParameters()) {
+					chunks.put(chunk.getName(), chunk.getValue());
+				}
+			}
+			for (String chunkName : chunkNames) {
+				if (!chunks.containsKey(chunkName)) {
+					throw new TornReadException(head);
+				}
+				payload.append(chunks.get(chunkName));
+			}
+		}
+		if (!Hashes.sha256Hex(payload.toString()).equals(header[2])) {
+			throw new TornReadException(head);
+		}
+		final Map<?, ?> untypedMap = mapper.readValue(ENCODING_GZIP.equals(header[0])
+				? gunzip(payload.toString()) : payload.toString(), LinkedHashMap.class);
+		final Map<String, String> bindings = new LinkedHashMap<>();
+		for (Map.Entry<?, ?> untypedEntry : untypedMap.entrySet()) {
+			bindings.put(Objects.toString(untypedEntry.getKey()), Objects.toString(untypedEntry.getValue()));
+		}
+		return bindings;
+	}
+
+	private String encode(final Map<String, String> bindings) throws IOException {
+		final String json = mapper.writeValueAsString(bindings);
+		if (!compress) {
+			return json;
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (OutputStream gzip = new GZIPOutputStream(bytes)) {
+			gzip.write(json.getBytes(UTF_8));
+		}
+		return Base64.getEncoder().encodeToString(bytes.toByteArray());
+	}
+
+	private static String gunzip(final String payload) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(payload)))) {
+			final byte[] buffer = new byte[8192];
+			int read;
+			while ((read = gzip.read(buffer)) > 0) {
+				bytes.write(buffer, 0, read);
+			}
+		}
+		return new String(bytes.toByteArray(), UTF_8);
+	}
+
+	/**
+	 * The head and chunks read didn't come from the same write.
+	 */
+	private static final class TornReadException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private TornReadException(final String head) {
+			super("Packed parameter changed while it was read: " + head);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.amazonaws.services.simplesystemsmanagement.model.Parameter;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterStringFilter;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterType;
+
+/**
+ * Selects parameters by key pattern, type and label. Types and labels are sent to SSM as {@code ParameterFilters}, so
+ * unselected parameters are never transferred. Key patterns have no server-side equivalent under a path, so they are
+ * compiled once and matched against each key as pages arrive, before anything is decrypted.
+ * <p>
+ * Key patterns are globs, where {@code *} matches any run of characters and {@code ?} matches one character. A key is
+ * selected if it matches any include (or there are none) and no exclude. Instances are immutable.
+ */
+public final class ParameterSelector {
+
+	/**
+	 * Selects every parameter.
+	 */
+	public static final ParameterSelector ALL = new ParameterSelector(Collections.emptyList(), Collections.emptyList(),
+			EnumSet.noneOf(ParameterType.class), Collections.emptyList());
+
+	private static final String FILTER_TYPE = "Type";
+
+	private static final String FILTER_LABEL = "Label";
+
+	private static final String OPTION_EQUALS = "Equals";
+
+	private final List<String> includes;
+
+	private final List<String> excludes;
+
+	private final Set<ParameterType> types;
+
+	private final List<String> labels;
+
+	private final Pattern includePattern;
+
+	private final Pattern excludePattern;
+
+	private ParameterSelector(final List<String> includes, final List<String> excludes, final Set<ParameterType> types,
+			final List<String> labels) {
+		this.includes = Collections.unmodifiableList(includes);
+		this.excludes = Collections.unmodifiableList(excludes);
+		this.types = Collections.unmodifiableSet(types);
+		this.labels = Collections.unmodifiableList(labels);
+		this.includePattern = compile(includes);
+		this.excludePattern = compile(excludes);
+	}
+
+	/**
+	 * Get a copy of this selector that also includes keys matching a glob.
+	 *
+	 * @param glob the key pattern
+	 * @return a new selector
+	 */
+	public ParameterSelector withInclude(final String glob) {
+		return new ParameterSelector(append(includes, glob), new ArrayList<>(excludes), copyTypes(),
+				new ArrayList<>(labels));
+	}
+
+	/**
+	 * Get a copy of this selector that also excludes keys matching a glob.
+	 *
+	 * @param glob the key pattern
+	 * @return a new selector
+	 */
+	public ParameterSelector withExclude(final String glob) {
+		return new ParameterSelector(new ArrayList<>(includes), append(excludes, glob), copyTypes(),
+				new ArrayList<>(labels));
+	}
+
+	/**
+	 * Get a copy of this selector that also selects a parameter type. Until a type is added, all types are selected.
+	 *
+	 * @param type the parameter type
+	 * @return a new selector
+	 */
+	public ParameterSelector withType(final ParameterType type) {
+		final Set<ParameterType> newTypes = copyTypes();
+		newTypes.add(type);
+		return new ParameterSelector(new ArrayList<>(includes), new ArrayList<>(excludes), newTypes,
+				new ArrayList<>(labels));
+	}
+
+	/**
+	 * Get a copy of this selector that only selects parameters with a version that carries a label. SSM then lists
+	 * the labeled version of each parameter, which need not be its latest. Labels are only checked by SSM.
+	 *
+	 * @param label the label
+	 * @return a new selector
+	 */
+	public ParameterSelector withLabel(final String label) {
+		return new ParameterSelector(new ArrayList<>(includes), new ArrayList<>(excludes), copyTypes(),
+				append(labels, label));
+	}
+
+	/**
+	 * Check whether this selector selects every parameter.
+	 *
+	 * @return true if there are no patterns, types or labels
+	 */
+	public boolean isAll() {
+		return includes.isEmpty() && excludes.isEmpty() && types.isEmpty() && labels.isEmpty();
+	}
+
+	/**
+	 * Check whether parameters are selected by label, so that a listed parameter may not be at its latest version.
+	 *
+	 * @return true if there are labels
+	 */
+	boolean hasLabels() {
+		return !labels.isEmpty();
+	}
+
+	/**
+	 * Check a key against the include and exclude patterns.
+	 *
+	 * @param key the key, relative to its parameter path
+	 * @return true if the key is selected
+	 */
+	public boolean matchesKey(final String key) {
+		return (includePattern == null || includePattern.matcher(key).matches())
+				&& (excludePattern == null || !excludePattern.matcher(key).matches());
+	}
+
+	/**
+	 * Check a parameter against the key patterns and types. SSM has already applied the type and label filters to
+	 * anything fetched with {@link #toParameterFilters()}, so this only repeats the type check for parameters
+	 * fetched another way.
+	 *
+	 * @param key       the key, relative to its parameter path
+	 * @param parameter the parameter
+	 * @return true if the parameter is selected
+	 */
+	public boolean matches(final String key, final Parameter parameter) {
+		return matchesKey(key) && (types.isEmpty() || types.contains(ParameterType.fromValue(parameter.getType())));
+	}
+
+	/**
+	 * Build the filters for a GetParametersByPath request.
+	 *
+	 * @return the filters, or an empty list
+	 */
+	List<ParameterStringFilter> toParameterFilters() {
+		final List<ParameterStringFilter> filters = new ArrayList<>();
+		if (!types.isEmpty()) {
+			filters.add(new ParameterStringFilter().withKey(FILTER_TYPE).withOption(OPTION_EQUALS)
+					.withValues(types.stream().map(ParameterType::toString).collect(Collectors.toList())));
+		}
+		if (!labels.isEmpty()) {
+			filters.add(new ParameterStringFilter().withKey(FILTER_LABEL).withOption(OPTION_EQUALS).withValues(labels));
+		}
+		return filters;
+	}
+
+	/**
+	 * Get a copy of this selector that leaves out one type, so that the type check happens in SSM.
+	 *
+	 * @param type the type to leave out
+	 * @return the new selector, or empty if no types would be left
+	 */
+	Optional<ParameterSelector> excludingType(final ParameterType type) {
+		final Set<ParameterType> newTypes = types.isEmpty() ? EnumSet.allOf(ParameterType.class) : copyTypes();
+		newTypes.remove(type);
+		if (newTypes.isEmpty()) {
+			return Optional.empty();
+		}
+		return Optional.of(new ParameterSelector(new ArrayList<>(includes), new ArrayList<>(excludes), newTypes,
+				new ArrayList<>(labels)));
+	}
+
+	private Set<ParameterType> copyTypes() {
+		final Set<ParameterType> copy = EnumSet.noneOf(ParameterType.class);
+		copy.addAll(types);
+		return copy;
+	}
+
+	private static List<String> append(final List<String> list, final String value) {
+		final List<String> copy = new ArrayList<>(list);
+		copy.add(value);
+		return copy;
+	}
+
+	private static Pattern compile(final List<String> globs) {
+		if (globs.isEmpty()) {
+			return null;
+		}
+		return Pattern.compile(globs.stream().map(ParameterSelector::globToRegex).collect(Collectors.joining("|")));
+	}
+
+	private static String globToRegex(final String glob) {
+		final StringBuilder regex = new StringBuilder("(?:");
+		int literalStart = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			final char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (i > literalStart) {
+					regex.append(Pattern.quote(glob.substring(literalStart, i)));
+				}
+				regex.append(c == '*' ? ".*" : ".");
+				literalStart = i + 1;
+			}
+		}
+		if (literalStart < glob.length()) {
+			regex.append(Pattern.quote(glob.substring(literalStart)));
+		}
+		return regex.append(")").toString();
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checkpoint journal of completed PUT work, so that a retried run can skip parameters that were already written.
+ * Each line is tab-delimited: an operation, a hash of what was written, and the parameter name or path.
+ */
+class PutJournal implements Closeable {
+
+	/**
+	 * Number of completed entries to buffer before appending them to the journal file.
+	 */
+	static final int DEFAULT_FLUSH_SIZE = 100;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String OP_PUT = "put";
+
+	private static final String OP_CLEAR = "clear";
+
+	private final File file;
+
+	private final int flushSize;
+
+	private final PrintStream stderr;
+
+	private final Map<String, String> completedPuts = new ConcurrentHashMap<>();
+
+	private final Set<String> completedClears = ConcurrentHashMap.newKeySet();
+
+	private final List<String> pending = new ArrayList<>();
+
+	// buffered entries would otherwise be lost when the run is interrupted or terminated.
+	private final Thread shutdownHook = new Thread(this::flushOnShutdown, "ssmple-journal-flush");
+
+	/**
+	 * Create a journal.
+	 *
+	 * @param file      the journal file
+	 * @param flushSize number of entries to buffer before appending them
+	 * @param stderr    where to report a failure to flush on shutdown, when no caller is left to throw to
+	 */
+	PutJournal(final File file, final int flushSize, final PrintStream stderr) {
+		this.file = file;
+		this.flushSize = Math.max(1, flushSize);
+		this.stderr = stderr;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Read any entries left behind by a previous run, and flush entries recorded from now on if the JVM shuts down
+	 * before {@link #finish(boolean)} or {@link #close()}.
+	 *
+	 * @throws IOException if the journal exists but can't be read
+	 */
+	void load() throws IOException {
+		completedPuts.clear();
+		completedClears.clear();
+		if (file.exists()) {
+			read();
+		}
+		Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	private void read() throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] parts = line.split("\t", 3);
+				// a torn final line from a killed process is simply ignored.
+				if (parts.length != 3) {
+					continue;
+				}
+				if (OP_PUT.equals(parts[0])) {
+					completedPuts.put(parts[2], parts[1]);
+				} else if (OP_CLEAR.equals(parts[0])) {
+					completedClears.add(parts[2]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check whether a parameter was already written with the same hash.
+	 *
+	 * @param name the parameter name
+	 * @param hash the hash of the put request, from {@link #hashPut(String, String, String)}
+	 * @return true if this put can be skipped
+	 */
+	boolean isPutComplete(final String name, final String hash) {
+		return hash.equals(completedPuts.get(name));
+	}
+
+	/**
+	 * Check whether the parameter path was already cleared by a previous run.
+	 *
+	 * @param parameterPath the cleared path
+	 * @return true if the clear can be skipped
+	 */
+	boolean isClearComplete(final String parameterPath) {
+		return completedClears.contains(parameterPath);
+	}
+
+	void recordPut(final String name, final String hash) throws IOException {
+		completedPuts.put(name, hash);
+		append(OP_PUT + "\t" + hash + "\t" + name);
+	}
+
+	void recordClear(final String parameterPath) throws IOException {
+		completedClears.add(parameterPath);
+		append(OP_CLEAR + "\t-\t" + parameterPath);
+		// a clear must be durable before any put that follows it.
+		flush();
+	}
+
+	private void append(final String line) throws IOException {
+		final boolean shouldFlush;
+		synchronized (pending) {
+			pending.add(line);
+			shouldFlush = pending.size() >= flushSize;
+		}
+		if (shouldFlush) {
+			flush();
+		}
+	}
+
+	/**
+	 * Append buffered entries to the journal file.
+	 *
+	 * @throws IOException if the journal can't be written
+	 */
+	void flush() throws IOException {
+		synchronized (pending) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			try (FileOutputStream fos = new FileOutputStream(file, true);
+				 Writer writer = new OutputStreamWriter(fos, UTF_8)) {
+				for (String line : pending) {
+					writer.write(line);
+					writer.write('\n');
+				}
+				writer.flush();
+				fos.getFD().sync();
+			}
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Flush remaining entries and, if the run completed, delete the journal so it can't skip a later deliberate PUT.
+	 *
+	 * @param completed true if every put succeeded
+	 * @throws IOException if the journal can't be written or deleted
+	 */
+	void finish(final boolean completed) throws IOException {
+		close();
+		if (completed && file.exists() && !file.delete()) {
+			throw new IOException("Failed to delete completed journal " + file.getAbsolutePath());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// already shutting down, so the hook flushes instead.
+		}
+		flush();
+	}
+
+	private void flushOnShutdown() {
+		try {
+			flush();
+		} catch (IOException e) {
+			stderr.println("Failed to flush journal " + file.getAbsolutePath());
+			e.printStackTrace(stderr);
+		}
+	}
+
+	/**
+	 * Hash the parts of a put request that determine the stored parameter.
+	 *
+	 * @param type  the parameter type
+	 * @param keyId the KMS key ID, or null
+	 * @param value the escaped parameter value
+	 * @return a hex-encoded SHA-256 digest
+	 */
+	static String hashPut(final String type, final String keyId, final String value) {
+		return Hashes.sha256Hex(type, keyId, value);
+	}
+}
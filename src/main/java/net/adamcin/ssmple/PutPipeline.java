@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagement;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterAlreadyExistsException;
+import com.amazonaws.services.simplesystemsmanagement.model.PutParameterRequest;
+
+/**
+ * Dispatches put requests over a fixed number of lanes. Each parameter name always maps to the same lane, so puts to
+ * one name are applied in submission order, and each lane's queue is bounded so that a fast producer blocks instead of
+ * buffering an entire tree in memory. Failures are collected rather than thrown so one bad key does not abort a batch.
+ */
+class PutPipeline {
+
+	/**
+	 * Called on the worker thread after a put succeeds. If it throws, the put is reported as a failure instead.
+	 */
+	interface Callback {
+		void onSuccess(PutParameterRequest request) throws Exception;
+	}
+
+	/**
+	 * A put that failed, with the cause.
+	 */
+	static final class Failure {
+		private final PutParameterRequest request;
+
+		private final Exception cause;
+
+		Failure(final PutParameterRequest request, final Exception cause) {
+			this.request = request;
+			this.cause = cause;
+		}
+
+		String getName() {
+			return request.getName();
+		}
+
+		PutParameterRequest getRequest() {
+			return request;
+		}
+
+		Exception getCause() {
+			return cause;
+		}
+	}
+
+	/**
+	 * Marks the end of a lane's queue.
+	 */
+	private static final Task END_OF_LANE = new Task(null, null);
+
+	private static final class Task {
+		private final PutParameterRequest request;
+
+		private final Callback callback;
+
+		private Task(final PutParameterRequest request, final Callback callback) {
+			this.request = request;
+			this.callback = callback;
+		}
+	}
+
+	private final AWSSimpleSystemsManagement ssm;
+
+	private final List<BlockingQueue<Task>> lanes;
+
+	private final CountDownLatch finished;
+
+	private final AtomicInteger written = new AtomicInteger();
+
+	private final AtomicInteger skipped = new AtomicInteger();
+
+	private final List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+
+	private volatile Predicate<PutParameterRequest> alreadyPut;
+
+	private boolean closed;
+
+	/**
+	 * Start the lane workers. The executor must be able to run {@code laneCount} tasks at once.
+	 *
+	 * @param ssm        the SSM client
+	 * @param executor   runs one long-lived task per lane
+	 * @param laneCount  number of concurrent puts
+	 * @param queueDepth maximum pending puts per lane
+	 */
+	PutPipeline(final AWSSimpleSystemsManagement ssm, final ExecutorService executor, final int laneCount,
+			final int queueDepth) {
+		this.ssm = ssm;
+		this.lanes = new ArrayList<>(laneCount);
+		this.finished = new CountDownLatch(laneCount);
+		for (int i = 0; i < laneCount; i++) {
+			final BlockingQueue<Task> lane = new ArrayBlockingQueue<>(queueDepth);
+			this.lanes.add(lane);
+			executor.execute(() -> drain(lane));
+		}
+	}
+
+	private void drain(final BlockingQueue<Task> lane) {
+		try {
+			Task task;
+			while ((task = lane.take()) != END_OF_LANE) {
+				try {
+					final boolean isWritten = put(task.request);
+					// counted only once the callback succeeds, since its failure is reported as this put's.
+					if (task.callback != null) {
+						task.callback.onSuccess(task.request);
+					}
+					(isWritten ? written : skipped).incrementAndGet();
+				} catch (Exception e) {
+					failures.add(new Failure(task.request, e));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * Put a parameter.
+	 *
+	 * @return false if the parameter already existed exactly as requested
+	 */
+	private boolean put(final PutParameterRequest request) {
+		try {
+			ssm.putParameter(request);
+			return true;
+		} catch (ParameterAlreadyExistsException e) {
+			final Predicate<PutParameterRequest> check = alreadyPut;
+			if (check != null && check.test(request)) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Set the check for a put that failed because its parameter exists. When it returns true, the existing
+	 * parameter is taken as this put's own work, such as from an interrupted run, and the put counts as skipped.
+	 *
+	 * @param alreadyPut the check, or null to fail such puts
+	 */
+	void setAlreadyPut(final Predicate<PutParameterRequest> alreadyPut) {
+		this.alreadyPut = alreadyPut;
+	}
+
+	/**
+	 * Queue a put, blocking while the lane for its name is full.
+	 *
+	 * @param request  the put request
+	 * @param callback optional, called after the put succeeds
+	 */
+	void submit(final PutParameterRequest request, final Callback callback) {
+		if (closed) {
+			throw new IllegalStateException("pipeline is closed");
+		}
+		final int lane = (request.getName().hashCode() & Integer.MAX_VALUE) % lanes.size();
+		try {
+			lanes.get(lane).put(new Task(request, callback));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while queueing put for " + request.getName(), e);
+		}
+	}
+
+	/**
+	 * Count a parameter that was deliberately not put.
+	 */
+	void skip() {
+		skipped.incrementAndGet();
+	}
+
+	/**
+	 * Wait for all queued puts to complete. No more puts may be submitted afterward.
+	 */
+	void awaitCompletion() {
+		if (!closed) {
+			closed = true;
+			for (BlockingQueue<Task> lane : lanes) {
+				try {
+					lane.put(END_OF_LANE);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		try {
+			finished.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	int getWritten() {
+		return written.get();
+	}
+
+	int getSkipped() {
+		return skipped.get();
+	}
+
+	List<Failure> getFailures() {
+		synchronized (failures) {
+			return new ArrayList<>(failures);
+		}
+	}
+}
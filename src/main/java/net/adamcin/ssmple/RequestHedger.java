@@ -0,0 +1,224 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package net.adamcin.ssmple;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends a duplicate of a slow request and takes whichever answers first. A request is considered slow once it has
+ * run longer than a percentile of recently observed latencies, and duplicates are capped at a fraction of all
+ * requests so hedging can't turn into a load multiplier.
+ */
+final class RequestHedger {
+
+	/**
+	 * Percentile threshold used when none is specified.
+	 */
+	static final double DEFAULT_PERCENTILE = 95.0;
+
+	/**
+	 * Most extra requests, as a fraction of all requests.
+	 */
+	static final double DEFAULT_BUDGET = 0.05;
+
+	/**
+	 * Latencies to observe before the percentile means anything.
+	 */
+	private static final int MIN_SAMPLES = 20;
+
+	/**
+	 * Size of the window of recent latencies.
+	 */
+	private static final int WINDOW = 256;
+
+	private final double percentile;
+
+	private final double budget;
+
+	private final long[] samples = new long[WINDOW];
+
+	private int sampleCount;
+
+	private int sampleIndex;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong hedges = new AtomicLong();
+
+	private volatile ExecutorService pool;
+
+	/**
+	 * Create a hedger.
+	 *
+	 * @param percentile latency percentile after which to hedge, between 0 and 100 exclusive
+	 * @param budget     most extra requests, as a fraction of all requests
+	 */
+	RequestHedger(final double percentile, final double budget) {
+		if (percentile <= 0.0 || percentile >= 100.0) {
+			throw new IllegalArgumentException("hedge percentile must be between 0 and 100: " + percentile);
+		}
+		if (budget < 0.0) {
+			throw new IllegalArgumentException("hedge budget must not be negative: " + budget);
+		}
+		this.percentile = percentile;
+		this.budget = budget;
+	}
+
+	/**
+	 * Run a request, hedging it if it is slow and the budget allows.
+	 *
+	 * @param request an idempotent request
+	 * @param <T>     the result type
+	 * @return the first successful result
+	 */
+	<T> T call(final Supplier<T> request) {
+		final long count = requests.incrementAndGet();
+		final long threshold = getThresholdNanos();
+		// a request that can't be hedged runs on the caller's thread. One that can runs on the pool, so that the
+		// caller is free to take the duplicate's answer if it comes first.
+		if (threshold == 0L || hedges.get() + 1 > budget * count) {
+			final long start = System.nanoTime();
+			final T value = request.get();
+			record(System.nanoTime() - start);
+			return value;
+		}
+
+		final CompletableFuture<T> result = new CompletableFuture<>();
+		final AtomicInteger inFlight = new AtomicInteger(1);
+		launch(request, result, inFlight);
+		try {
+			return result.get(threshold, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			if (!result.isDone() && reserveHedge()) {
+				inFlight.incrementAndGet();
+				launch(request, result, inFlight);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for request", e);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for request", e);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Count a hedge if the budget still allows one. Concurrent callers can't both take the last one.
+	 */
+	private boolean reserveHedge() {
+		while (true) {
+			final long current = hedges.get();
+			if (current + 1 > budget * requests.get()) {
+				return false;
+			}
+			if (hedges.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	private <T> void launch(final Supplier<T> request, final CompletableFuture<T> result, final AtomicInteger inFlight) {
+		getPool().execute(() -> {
+			final long start = System.nanoTime();
+			try {
+				final T value = request.get();
+				record(System.nanoTime() - start);
+				result.complete(value);
+			} catch (RuntimeException e) {
+				// only fail if no other attempt can still succeed.
+				if (inFlight.decrementAndGet() == 0) {
+					result.completeExceptionally(e);
+				}
+			}
+		});
+	}
+
+	private ExecutorService getPool() {
+		ExecutorService current = pool;
+		if (current == null) {
+			synchronized (this) {
+				if (pool == null) {
+					pool = WorkerPools.newElasticPool("hedge");
+				}
+				current = pool;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Stop any attempts still running, whose results would be discarded anyway. No more requests may be hedged.
+	 */
+	synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	private synchronized void record(final long nanos) {
+		samples[sampleIndex] = nanos;
+		sampleIndex = (sampleIndex + 1) % WINDOW;
+		sampleCount = Math.min(sampleCount + 1, WINDOW);
+	}
+
+	/**
+	 * Get the current latency threshold.
+	 *
+	 * @return the threshold in nanoseconds, or 0 if too few latencies have been observed
+	 */
+	synchronized long getThresholdNanos() {
+		if (sampleCount < MIN_SAMPLES) {
+			return 0L;
+		}
+		final long[] sorted = Arrays.copyOf(samples, sampleCount);
+		Arrays.sort(sorted);
+		final int rank = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+	}
+
+	long getRequestCount() {
+		return requests.get();
+	}
+
+	long getHedgeCount() {
+		return hedges.get();
+	}
+
+	private static RuntimeException unwrap(final ExecutionException e) {
+		if (e.getCause() instanceof RuntimeException) {
+			return (RuntimeException) e.getCause();
+		}
+		return new IllegalStateException(e.getCause());
+	}
+}
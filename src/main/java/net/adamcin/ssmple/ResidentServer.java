@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Serves command lines from {@code ssmple-client} over a Unix domain socket. Java 8 has no Unix domain sockets, so
+ * this variant only explains that; the Java 21 variant in the multi-release jar replaces it and must keep the same
+ * methods.
+ */
+final class ResidentServer {
+
+	private ResidentServer() {
+		// no instances
+	}
+
+	/**
+	 * Accept connections until the process is stopped.
+	 *
+	 * @param socketFile the socket path
+	 * @throws IOException always, on this Java version
+	 */
+	static void serve(final File socketFile) throws IOException {
+		throw new IOException("serve requires the Java 21 build of ssmple, running on Java 21 or later");
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs one command line forwarded by {@code ssmple-client} and streams back its output and exit status.
+ * <p>
+ * The client sends NUL-terminated UTF-8 fields: the protocol version, its working directory, the number of its
+ * {@code AWS_*} environment variables and each as {@code NAME=<sha256 of value>}, then the number of arguments and the
+ * arguments. The SDK reads region and credentials from those variables in the server's environment, so a run whose
+ * client has different ones is refused rather than sent to another account or region. The reply is a series of frames, each a channel byte, a four-byte big-endian length and the
+ * payload. Channel 1 is standard output and 2 is standard error, and channel 0 carries the four-byte exit status and
+ * ends the reply. Runs from different clients proceed side by side, each printing only to its own client.
+ */
+final class ResidentSession {
+
+	static final String PROTOCOL = "ssmple-1";
+
+	static final int CHANNEL_EXIT = 0;
+
+	static final int CHANNEL_STDOUT = 1;
+
+	static final int CHANNEL_STDERR = 2;
+
+	/**
+	 * Longest field a client may send, so a stray connection can't exhaust the heap.
+	 */
+	private static final int MAX_FIELD_BYTES = 1 << 20;
+
+	private static final String ENV_PREFIX = "AWS_";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final ClientCache clientCache;
+
+	ResidentSession(final ClientCache clientCache) {
+		this.clientCache = clientCache;
+	}
+
+	/**
+	 * Get the socket path shared with {@code ssmple-client}: {@code $SSMPLE_SOCKET}, or else
+	 * {@code ssmple-<user>.sock} in {@code $TMPDIR} or {@code /tmp}.
+	 *
+	 * @return the socket path
+	 */
+	static File getDefaultSocketFile() {
+		final String configured = System.getenv("SSMPLE_SOCKET");
+		if (configured != null && !configured.isEmpty()) {
+			return new File(configured);
+		}
+		final String tmpdir = System.getenv("TMPDIR");
+		return new File(tmpdir != null && !tmpdir.isEmpty() ? tmpdir : "/tmp",
+				"ssmple-" + System.getProperty("user.name") + ".sock");
+	}
+
+	/**
+	 * Read one request from a connection, run it and write the reply.
+	 *
+	 * @param input  the connection's input
+	 * @param output the connection's output
+	 * @throws IOException if the request is malformed or the client goes away
+	 */
+	void handle(final InputStream input, final OutputStream output) throws IOException {
+		final InputStream in = new BufferedInputStream(input);
+		final FrameWriter frames = new FrameWriter(output);
+		final String protocol = readField(in);
+		if (!PROTOCOL.equals(protocol)) {
+			final byte[] message = String.format("ssmple serve: unsupported client protocol %s%n", protocol).getBytes(UTF_8);
+			frames.write(CHANNEL_STDERR, message, 0, message.length);
+			frames.exit(2);
+			return;
+		}
+		final File workingDir = new File(readField(in));
+		final Map<String, String> clientEnvironment = new TreeMap<>();
+		final int envCount = readCount(in);
+		for (int i = 0; i < envCount; i++) {
+			final String var = readField(in);
+			final int eq = var.indexOf('=');
+			if (eq < 0) {
+				throw new IOException("malformed environment variable");
+			}
+			clientEnvironment.put(var.substring(0, eq), var.substring(eq + 1));
+		}
+		final int argCount = readCount(in);
+		final List<String> args = new ArrayList<>();
+		for (int i = 0; i < argCount; i++) {
+			args.add(readField(in));
+		}
+		final Map<String, String> serverEnvironment = getAwsEnvironment();
+		if (!serverEnvironment.equals(clientEnvironment)) {
+			final Set<String> differing = new TreeSet<>(serverEnvironment.keySet());
+			differing.addAll(clientEnvironment.keySet());
+			differing.removeIf(name -> Objects.equals(serverEnvironment.get(name), clientEnvironment.get(name)));
+			final byte[] message = String.format("ssmple serve: environment differs from the server's in %s; run "
+					+ "bin/ssmple instead, or restart ssmple serve with it%n", String.join(", ", differing)).getBytes(UTF_8);
+			frames.write(CHANNEL_STDERR, message, 0, message.length);
+			frames.exit(2);
+			return;
+		}
+		frames.exit(run(args, workingDir, frames));
+	}
+
+	private static int readCount(final InputStream in) throws IOException {
+		try {
+			return Integer.parseInt(readField(in));
+		} catch (NumberFormatException e) {
+			throw new IOException("malformed count", e);
+		}
+	}
+
+	private int run(final List<String> args, final File workingDir, final FrameWriter frames) throws IOException {
+		final PrintStream out = new PrintStream(new BufferedOutputStream(frames.channel(CHANNEL_STDOUT), 65536),
+				false, UTF_8.name());
+		final PrintStream err = new PrintStream(frames.channel(CHANNEL_STDERR), true, UTF_8.name());
+		try {
+			final Main main = Main.parseArgs(args, workingDir);
+			// the client doesn't forward its standard input, and the server's own must never be read instead.
+			main.setStdin(null);
+			main.setStdout(out);
+			main.setStderr(err);
+			main.setClientCache(clientCache);
+			main.doMain();
+			return 0;
+		} catch (Exception e) {
+			e.printStackTrace(err);
+			return 1;
+		} finally {
+			out.flush();
+			err.flush();
+		}
+	}
+
+	/**
+	 * Get the {@code AWS_*} environment variables of this process, hashed as the client sends its own.
+	 */
+	private static Map<String, String> getAwsEnvironment() {
+		final Map<String, String> hashes = new TreeMap<>();
+		for (Map.Entry<String, String> var : System.getenv().entrySet()) {
+			if (var.getKey().startsWith(ENV_PREFIX)) {
+				hashes.put(var.getKey(), Hashes.sha256Hex(var.getValue()));
+			}
+		}
+		return hashes;
+	}
+
+	private static String readField(final InputStream in) throws IOException {
+		final ByteArrayOutputStream field = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != 0) {
+			if (b < 0) {
+				throw new EOFException("client closed the connection mid-request");
+			}
+			if (field.size() >= MAX_FIELD_BYTES) {
+				throw new IOException("request field exceeds " + MAX_FIELD_BYTES + " bytes");
+			}
+			field.write(b);
+		}
+		return new String(field.toByteArray(), UTF_8);
+	}
+
+	/**
+	 * Writes reply frames. Both output channels share one connection, so each frame is written whole.
+	 */
+	private static final class FrameWriter {
+		private final DataOutputStream out;
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private FrameWriter(final OutputStream output) {
+			this.out = new DataOutputStream(new BufferedOutputStream(output));
+		}
+
+		private void write(final int channel, final byte[] bytes, final int off, final int len) throws IOException {
+			lock.lock();
+			try {
+				out.writeByte(channel);
+				out.writeInt(len);
+				out.write(bytes, off, len);
+				out.flush();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void exit(final int status) throws IOException {
+			write(CHANNEL_EXIT, new byte[]{(byte) (status >>> 24), (byte) (status >>> 16), (byte) (status >>> 8),
+					(byte) status}, 0, 4);
+		}
+
+		private OutputStream channel(final int channel) {
+			return new OutputStream() {
+				@Override
+				public void write(final int b) throws IOException {
+					FrameWriter.this.write(channel, new byte[]{(byte) b}, 0, 1);
+				}
+
+				@Override
+				public void write(final byte[] bytes, final int off, final int len) throws IOException {
+					if (len > 0) {
+						FrameWriter.this.write(channel, bytes, off, len);
+					}
+				}
+			};
+		}
+	}
+}
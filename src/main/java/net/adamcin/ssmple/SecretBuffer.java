@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.util.Arrays;
+
+/**
+ * A decrypted SecureString value held in a char array that is zeroed once the value has been written, so that the
+ * plaintext doesn't linger on the heap (or in a heap dump) in copies made by ssmple. {@link #toString()} makes an
+ * ordinary String copy, and is only for serializers that can't write from a char array.
+ */
+final class SecretBuffer implements CharSequence {
+
+	private final char[] chars;
+
+	private boolean cleared;
+
+	private SecretBuffer(final char[] chars) {
+		this.chars = chars;
+	}
+
+	/**
+	 * Copy a value returned by SSM, applying {@link SsmpleClient#unescapeValueAfterGet(String)} without an
+	 * intermediate String.
+	 *
+	 * @param value the escaped parameter value
+	 * @return a new buffer
+	 */
+	static SecretBuffer unescapedFrom(final String value) {
+		int length = value.length();
+		if (length > 0 && value.chars().allMatch(c -> c == ' ')) {
+			length--;
+		}
+		final char[] chars = new char[length];
+		value.getChars(0, length, chars, 0);
+		return new SecretBuffer(chars);
+	}
+
+	/**
+	 * Get the characters for writing. The array must not be kept.
+	 *
+	 * @return the backing array
+	 */
+	char[] getChars() {
+		if (cleared) {
+			throw new IllegalStateException("secret has already been cleared");
+		}
+		return chars;
+	}
+
+	/**
+	 * Zero the value. It can't be read afterward.
+	 */
+	void clear() {
+		Arrays.fill(chars, '\0');
+		cleared = true;
+	}
+
+	@Override
+	public int length() {
+		return chars.length;
+	}
+
+	@Override
+	public char charAt(final int index) {
+		return getChars()[index];
+	}
+
+	@Override
+	public CharSequence subSequence(final int start, final int end) {
+		return new SecretBuffer(Arrays.copyOfRange(getChars(), start, end));
+	}
+
+	@Override
+	public String toString() {
+		return new String(getChars());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.nio.charset.Charset;
+
+/**
+ * One of {@code n} deterministic partitions of a parameter tree, so that {@code n} processes can split one command
+ * without overlapping. Keys are hashed with 64-bit FNV-1a and assigned to buckets by jump consistent hash, which gives
+ * every process the same answer without coordination.
+ */
+final class Shard {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int index;
+
+	private final int count;
+
+	Shard(final int index, final int count) {
+		if (count <= 0 || index < 0 || index >= count) {
+			throw new IllegalArgumentException(String.format("Invalid shard %d/%d", index, count));
+		}
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Parse a zero-based shard spec like {@code 0/4}.
+	 *
+	 * @param spec the shard spec
+	 * @return the shard
+	 */
+	static Shard parse(final String spec) {
+		final int slash = spec.indexOf('/');
+		if (slash < 0) {
+			throw new IllegalArgumentException("Invalid shard, expected i/n: " + spec);
+		}
+		try {
+			return new Shard(Integer.parseInt(spec.substring(0, slash)), Integer.parseInt(spec.substring(slash + 1)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid shard, expected i/n: " + spec);
+		}
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * Check whether this shard owns a key.
+	 *
+	 * @param key a parameter name, or a filename for get
+	 * @return true if the key belongs to this shard
+	 */
+	boolean contains(final String key) {
+		return bucketOf(key, count) == index;
+	}
+
+	static int bucketOf(final String key, final int buckets) {
+		return jumpHash(fnv1a64(key), buckets);
+	}
+
+	static long fnv1a64(final String key) {
+		long hash = FNV_OFFSET_BASIS;
+		for (byte b : key.getBytes(UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Jump consistent hash (Lamping and Veach), which moves only 1/n of the keys when a shard is added.
+	 *
+	 * @param key     the 64-bit key
+	 * @param buckets the number of buckets
+	 * @return the bucket, from 0 to buckets - 1
+	 */
+	static int jumpHash(final long key, final int buckets) {
+		long k = key;
+		long b = -1;
+		long j = 0;
+		while (j < buckets) {
+			b = j;
+			k = k * 2862933555777941757L + 1;
+			j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((k >>> 33) + 1)));
+		}
+		return (int) b;
+	}
+
+	@Override
+	public String toString() {
+		return index + "/" + count;
+	}
+}
@@ -0,0 +1,663 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package net.adamcin.ssmple;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.model.AliasListEntry;
+import com.amazonaws.services.kms.model.ListAliasesRequest;
+import com.amazonaws.services.kms.model.ListAliasesResult;
+import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagement;
+import com.amazonaws.services.simplesystemsmanagement.model.DescribeParametersRequest;
+import com.amazonaws.services.simplesystemsmanagement.model.DescribeParametersResult;
+import com.amazonaws.services.simplesystemsmanagement.model.GetParametersByPathRequest;
+import com.amazonaws.services.simplesystemsmanagement.model.GetParametersByPathResult;
+import com.amazonaws.services.simplesystemsmanagement.model.GetParametersRequest;
+import com.amazonaws.services.simplesystemsmanagement.model.GetParametersResult;
+import com.amazonaws.services.simplesystemsmanagement.model.Parameter;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterMetadata;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterStringFilter;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterType;
+import com.amazonaws.services.simplesystemsmanagement.model.ParametersFilter;
+import com.amazonaws.services.simplesystemsmanagement.model.ParametersFilterKey;
+
+/**
+ * Resolves the same key/value bindings that {@code ssmple get} writes to each file, without touching disk, for
+ * services that load their config in-process.
+ * <p>
+ * Instances are immutable and thread-safe. The SSM and KMS clients and the executor are supplied by the caller and are
+ * not shut down by this class.
+ * <pre>
+ * SsmpleClient client = new SsmpleClient(ssm, kms, executor);
+ * Map&lt;String, Map&lt;String, String&gt;&gt; files = client.load(
+ *         Arrays.asList("/ep/ecs/conf", "/ep/ecs/conf/preprod"),
+ *         Arrays.asList("ep.properties", "ep.override.properties"));
+ * </pre>
+ */
+public final class SsmpleClient {
+
+	/**
+	 * Property Key / Param Name suffix used for serializing KMS key IDs alongside SecureString values.
+	 */
+	public static final String KEY_ID_SUFFIX = "_SecureStringKeyId";
+
+	/**
+	 * Turns out this can be between 1 and 10. I'm so glad I made it a parameter.
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 10;
+
+	/**
+	 * Most names that GetParameters and DeleteParameters accept in one request.
+	 */
+	static final int MAX_NAMES_PER_REQUEST = 10;
+
+	/**
+	 * Most results that DescribeParameters returns in one page.
+	 */
+	static final int MAX_DESCRIBE_RESULTS = 50;
+
+	/**
+	 * Bidirectional KMS alias lookup, replaced as a whole so readers never see a partial list.
+	 */
+	private static final class KeyAliases {
+		private final Map<String, String> aliasesToKeys;
+
+		private final Map<String, String> keysToAliases;
+
+		private KeyAliases(final Map<String, String> aliasesToKeys, final Map<String, String> keysToAliases) {
+			this.aliasesToKeys = aliasesToKeys;
+			this.keysToAliases = keysToAliases;
+		}
+	}
+
+	private static final KeyAliases NO_ALIASES = new KeyAliases(Collections.emptyMap(), Collections.emptyMap());
+
+	private final AWSSimpleSystemsManagement ssm;
+
+	private final AWSKMS kms;
+
+	private final Executor executor;
+
+	private final int fetchSize;
+
+	private final boolean includeSecureStrings;
+
+	private final RequestHedger hedger;
+
+	private final ParameterSelector selector;
+
+	/**
+	 * Shared by this client and the copies made from it, so the list is loaded once for all of them.
+	 */
+	private final AtomicReference<KeyAliases> aliases;
+
+	/**
+	 * Create a client that includes SecureString values and their key ID sidecars.
+	 *
+	 * @param ssm      the SSM client
+	 * @param kms      optional, used to print key aliases instead of key IDs in sidecars
+	 * @param executor runs parameter fetches concurrently
+	 */
+	public SsmpleClient(final AWSSimpleSystemsManagement ssm, final AWSKMS kms, final Executor executor) {
+		this(ssm, kms, executor, DEFAULT_FETCH_SIZE, true, null, ParameterSelector.ALL, new AtomicReference<>());
+	}
+
+	private SsmpleClient(final AWSSimpleSystemsManagement ssm, final AWSKMS kms, final Executor executor,
+			final int fetchSize, final boolean includeSecureStrings, final RequestHedger hedger,
+			final ParameterSelector selector, final AtomicReference<KeyAliases> aliases) {
+		if (ssm == null || executor == null) {
+			throw new IllegalArgumentException("ssm client and executor are required");
+		}
+		this.ssm = ssm;
+		this.kms = kms;
+		this.executor = executor;
+		this.fetchSize = fetchSize;
+		this.includeSecureStrings = includeSecureStrings;
+		this.hedger = hedger;
+		this.selector = selector;
+		this.aliases = aliases;
+	}
+
+	/**
+	 * Get a copy of this client with a different page size.
+	 *
+	 * @param fetchSize max results per GetParametersByPath request, between 1 and 10
+	 * @return a new client
+	 */
+	public SsmpleClient withFetchSize(final int fetchSize) {
+		return new SsmpleClient(ssm, kms, executor, fetchSize, includeSecureStrings, hedger, selector, aliases);
+	}
+
+	/**
+	 * Get a copy of this client that runs fetches on another executor.
+	 *
+	 * @param executor runs parameter fetches concurrently
+	 * @return a new client
+	 */
+	public SsmpleClient withExecutor(final Executor executor) {
+		return new SsmpleClient(ssm, kms, executor, fetchSize, includeSecureStrings, hedger, selector, aliases);
+	}
+
+	/**
+	 * Get a copy of this client that includes or omits SecureString values.
+	 *
+	 * @param includeSecureStrings false to omit SecureString values and their key ID sidecars
+	 * @return a new client
+	 */
+	public SsmpleClient withSecureStrings(final boolean includeSecureStrings) {
+		return new SsmpleClient(ssm, kms, executor, fetchSize, includeSecureStrings, hedger, selector, aliases);
+	}
+
+	/**
+	 * Get a copy of this client that hedges slow GetParametersByPath pages. Pages are chained by NextToken, so one
+	 * slow page stalls the rest of its path. Once a page has taken longer than the given percentile of recent page
+	 * latencies, a duplicate request is sent and the first answer is used.
+	 *
+	 * @param percentile latency percentile after which to hedge, like 95.0
+	 * @param budget     most extra requests, as a fraction of all page requests, like 0.05
+	 * @return a new client
+	 */
+	public SsmpleClient withHedging(final double percentile, final double budget) {
+		return new SsmpleClient(ssm, kms, executor, fetchSize, includeSecureStrings,
+				new RequestHedger(percentile, budget), selector, aliases);
+	}
+
+	/**
+	 * Get a copy of this client that only loads the selected parameters. Unselected keys are left out of the overlay,
+	 * so a lower prefix can still supply them only if it is selected there too.
+	 *
+	 * @param selector the parameter selector
+	 * @return a new client
+	 */
+	public SsmpleClient withSelector(final ParameterSelector selector) {
+		return new SsmpleClient(ssm, kms, executor, fetchSize, includeSecureStrings, hedger, selector, aliases);
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	public boolean isIncludeSecureStrings() {
+		return includeSecureStrings;
+	}
+
+	/**
+	 * Get the value.
+	 *
+	 * @return the value
+	 */
+	public ParameterSelector getSelector() {
+		return selector;
+	}
+
+	AWSSimpleSystemsManagement getSsm() {
+		return ssm;
+	}
+
+	AWSKMS getKms() {
+		return kms;
+	}
+
+	RequestHedger getHedger() {
+		return hedger;
+	}
+
+	/**
+	 * Resolve the bindings for several files concurrently.
+	 *
+	 * @param pathPrefixes parameter path prefixes, in overlay order, so later prefixes win
+	 * @param filenames    file names, as for {@code -f}
+	 * @return unmodifiable bindings by file name, in the order of {@code filenames}
+	 */
+	public Map<String, Map<String, String>> load(final List<String> pathPrefixes, final Collection<String> filenames) {
+		final Map<String, CompletableFuture<Map<String, String>>> futures = new LinkedHashMap<>();
+		for (String filename : filenames) {
+			futures.put(filename, loadAsync(pathPrefixes, filename));
+		}
+		final Map<String, Map<String, String>> resolved = new LinkedHashMap<>();
+		for (Map.Entry<String, CompletableFuture<Map<String, String>>> entry : futures.entrySet()) {
+			resolved.put(entry.getKey(), join(entry.getValue()));
+		}
+		return Collections.unmodifiableMap(resolved);
+	}
+
+	/**
+	 * Resolve the bindings for one file.
+	 *
+	 * @param pathPrefixes parameter path prefixes, in overlay order, so later prefixes win
+	 * @param filename     the file name, as for {@code -f}
+	 * @return unmodifiable bindings
+	 */
+	public Map<String, String> load(final List<String> pathPrefixes, final String filename) {
+		return join(loadAsync(pathPrefixes, filename));
+	}
+
+	/**
+	 * Resolve the bindings for one file, fetching each prefix concurrently and overlaying them in prefix order.
+	 * <p>
+	 * Prefixes are listed without decryption first. Only the SecureStrings that survive the overlay are then
+	 * decrypted, so values that a later prefix overrides never cost a KMS request.
+	 *
+	 * @param pathPrefixes parameter path prefixes, in overlay order, so later prefixes win
+	 * @param filename     the file name, as for {@code -f}
+	 * @return a future of unmodifiable bindings
+	 */
+	public CompletableFuture<Map<String, String>> loadAsync(final List<String> pathPrefixes, final String filename) {
+		return resolveAsync(pathPrefixes, filename, value -> value, SsmpleClient::unescapeValueAfterGet);
+	}
+
+	/**
+	 * Resolve the bindings for one file like {@link #loadAsync(List, String)}, but with each decrypted SecureString
+	 * value in a {@link SecretBuffer} that the caller must clear once it has been written. Other values are Strings.
+	 *
+	 * @param pathPrefixes parameter path prefixes, in overlay order, so later prefixes win
+	 * @param filename     the file name, as for {@code -f}
+	 * @return a future of unmodifiable bindings
+	 */
+	CompletableFuture<Map<String, CharSequence>> loadScrubbedAsync(final List<String> pathPrefixes,
+			final String filename) {
+		return resolveAsync(pathPrefixes, filename, value -> value, SecretBuffer::unescapedFrom);
+	}
+
+	private <V extends CharSequence> CompletableFuture<Map<String, V>> resolveAsync(final List<String> pathPrefixes,
+			final String filename, final Function<String, V> plainValue, final Function<String, V> secretValue) {
+		final List<CompletableFuture<Map<String, Parameter>>> layers = new ArrayList<>();
+		for (String prefix : pathPrefixes) {
+			final String parameterPath = buildParameterPath(prefix, filename, null);
+			layers.add(CompletableFuture.supplyAsync(() -> listPath(parameterPath), executor));
+		}
+		return CompletableFuture.allOf(layers.toArray(new CompletableFuture<?>[0])).thenCompose(listed -> {
+			final Map<String, Parameter> winners = new LinkedHashMap<>();
+			for (CompletableFuture<Map<String, Parameter>> layer : layers) {
+				winners.putAll(layer.join());
+			}
+			final List<Parameter> secureParameters = winners.values().stream()
+					.filter(SsmpleClient::isSecureString)
+					.collect(Collectors.toList());
+			final Map<String, String> plaintexts = new ConcurrentHashMap<>();
+			final Map<String, String> keyIds = new ConcurrentHashMap<>();
+			final CompletableFuture<?>[] batches = ofSubLists(secureParameters, MAX_NAMES_PER_REQUEST)
+					.map(batch -> CompletableFuture.runAsync(() -> {
+						final List<String> names = batch.stream().map(Parameter::getName).collect(Collectors.toList());
+						// a labeled listing may be behind the latest version, so decrypt the versions it returned.
+						plaintexts.putAll(decryptValues(!selector.hasLabels() ? names : batch.stream()
+								.map(parameter -> parameter.getName() + ":" + parameter.getVersion())
+								.collect(Collectors.toList())));
+						keyIds.putAll(describeKeyIds(names));
+					}, executor))
+					.toArray(CompletableFuture<?>[]::new);
+			return CompletableFuture.allOf(batches).thenApply(decrypted -> {
+				final Map<String, V> bindings = new LinkedHashMap<>();
+				for (Map.Entry<String, Parameter> winner : winners.entrySet()) {
+					final Parameter parameter = winner.getValue();
+					if (!isSecureString(parameter)) {
+						bindings.put(winner.getKey(), plainValue.apply(unescapeValueAfterGet(parameter.getValue())));
+					} else if (plaintexts.containsKey(parameter.getName())) {
+						bindings.put(winner.getKey(), secretValue.apply(plaintexts.get(parameter.getName())));
+						Optional.ofNullable(keyIds.get(parameter.getName())).ifPresent(keyId ->
+								bindings.put(winner.getKey() + KEY_ID_SUFFIX, plainValue.apply(getAliasForKeyId(keyId))));
+					}
+				}
+				return Collections.unmodifiableMap(bindings);
+			});
+		});
+	}
+
+	/**
+	 * List the parameters stored directly under one parameter path, without decrypting SecureString values.
+	 *
+	 * @param parameterPath the parameter path for one file under one prefix
+	 * @return parameters by store key
+	 */
+	Map<String, Parameter> listPath(final String parameterPath) {
+		final Map<String, Parameter> parameters = new LinkedHashMap<>();
+		// omitted SecureStrings are filtered by SSM rather than transferred and dropped.
+		final Optional<ParameterSelector> listSelector = includeSecureStrings ? Optional.of(selector)
+				: selector.excludingType(ParameterType.SecureString);
+		if (!listSelector.isPresent()) {
+			return parameters;
+		}
+		forEachPage(parameterPath, false, false, listSelector.get().toParameterFilters(), page -> {
+			for (Parameter parameter : page) {
+				if (!parameter.getName().startsWith(parameterPath + "/")) {
+					continue;
+				}
+				final String key = parameter.getName().substring(parameterPath.length() + 1);
+				if (!listSelector.get().matches(key, parameter)) {
+					continue;
+				}
+				parameters.put(key, parameter);
+			}
+		});
+		return parameters;
+	}
+
+	/**
+	 * Decrypt specific parameters.
+	 *
+	 * @param names up to {@link #MAX_NAMES_PER_REQUEST} parameter names, each optionally with a {@code :version} or
+	 *              {@code :label} selector
+	 * @return map of parameter name, without any selector, to plaintext value, omitting any that no longer exist
+	 */
+	Map<String, String> decryptValues(final List<String> names) {
+		final Map<String, String> values = new HashMap<>();
+		if (names.isEmpty()) {
+			return values;
+		}
+		GetParametersResult result = ssm.getParameters(
+				new GetParametersRequest().withNames(names).withWithDecryption(true));
+		for (Parameter parameter : result.getParameters()) {
+			final String name = parameter.getSelector() != null && parameter.getName().endsWith(parameter.getSelector())
+					? parameter.getName().substring(0, parameter.getName().length() - parameter.getSelector().length())
+					: parameter.getName();
+			values.put(name, parameter.getValue());
+		}
+		return values;
+	}
+
+	static boolean isSecureString(final Parameter parameter) {
+		return ParameterType.fromValue(parameter.getType()) == ParameterType.SecureString;
+	}
+
+	static <T> Stream<List<T>> ofSubLists(final List<T> source, final int length) {
+		if (length <= 0)
+			throw new IllegalArgumentException("length = " + length);
+		int size = source.size();
+		if (size <= 0)
+			return Stream.empty();
+		int fullChunks = (size - 1) / length;
+		return IntStream.range(0, fullChunks + 1).mapToObj(
+				n -> source.subList(n * length, n == fullChunks ? size : (n + 1) * length));
+	}
+
+	/**
+	 * Fetch the parameters under a path one page at a time, so callers can stream them without holding the whole
+	 * path in memory.
+	 *
+	 * @param parameterPath the path to fetch
+	 * @param recursive     true to include all levels below the path
+	 * @param decrypt       true to decrypt SecureString values
+	 * @param pageConsumer  called with each non-empty page in order
+	 */
+	void forEachPage(final String parameterPath, final boolean recursive, final boolean decrypt,
+			final Consumer<List<Parameter>> pageConsumer) {
+		forEachPage(parameterPath, recursive, decrypt, Collections.emptyList(), pageConsumer);
+	}
+
+	/**
+	 * Fetch the parameters under a path one page at a time, with filters applied by SSM.
+	 *
+	 * @param parameterPath the path to fetch
+	 * @param recursive     true to include all levels below the path
+	 * @param decrypt       true to decrypt SecureString values
+	 * @param filters       filters from {@link ParameterSelector#toParameterFilters()}, or an empty list
+	 * @param pageConsumer  called with each non-empty page in order
+	 */
+	void forEachPage(final String parameterPath, final boolean recursive, final boolean decrypt,
+			final List<ParameterStringFilter> filters, final Consumer<List<Parameter>> pageConsumer) {
+		String nextToken = null;
+		do {
+			GetParametersByPathRequest req = new GetParametersByPathRequest()
+					.withMaxResults(fetchSize)
+					.withPath(parameterPath)
+					.withWithDecryption(decrypt)
+					.withNextToken(nextToken)
+					.withRecursive(recursive);
+			if (!filters.isEmpty()) {
+				req.setParameterFilters(filters);
+			}
+			// each attempt gets its own copy of the request, since a hedge may run alongside the original.
+			GetParametersByPathResult result = hedger == null
+					? ssm.getParametersByPath(req)
+					: hedger.call(() -> ssm.getParametersByPath(req.clone()));
+			if (!result.getParameters().isEmpty()) {
+				pageConsumer.accept(result.getParameters());
+			}
+			nextToken = result.getNextToken();
+		} while (nextToken != null && !nextToken.isEmpty());
+	}
+
+	/**
+	 * Describe one page of the parameters under a path, which includes type, key ID and version but not values.
+	 *
+	 * @param parameterPath the path
+	 * @param recursive     true to include all levels below the path
+	 * @param nextToken     the token from the previous page, or null for the first page
+	 * @return the page
+	 */
+	DescribeParametersResult describePath(final String parameterPath, final boolean recursive, final String nextToken) {
+		return ssm.describeParameters(new DescribeParametersRequest()
+				.withParameterFilters(new ParameterStringFilter()
+						.withKey("Path")
+						.withOption(recursive ? "Recursive" : "OneLevel")
+						.withValues(parameterPath))
+				.withMaxResults(MAX_DESCRIBE_RESULTS)
+				.withNextToken(nextToken));
+	}
+
+	/**
+	 * Look up the KMS key IDs of SecureString parameters.
+	 *
+	 * @param names parameter names
+	 * @return map of parameter name to key ID
+	 */
+	Map<String, String> describeKeyIds(final List<String> names) {
+		final Map<String, String> keyIds = new HashMap<>();
+		for (ParameterMetadata meta : describeMetadata(names).values()) {
+			if (meta.getKeyId() != null) {
+				keyIds.put(meta.getName(), meta.getKeyId());
+			}
+		}
+		return keyIds;
+	}
+
+	/**
+	 * Look up the metadata of parameters, such as their KMS key IDs and tiers.
+	 *
+	 * @param names parameter names
+	 * @return map of parameter name to metadata, omitting any that don't exist
+	 */
+	Map<String, ParameterMetadata> describeMetadata(final List<String> names) {
+		final Map<String, ParameterMetadata> metadata = new HashMap<>();
+		if (names.isEmpty()) {
+			return metadata;
+		}
+		String nextToken = null;
+		do {
+			DescribeParametersResult result = ssm.describeParameters(
+					new DescribeParametersRequest()
+							.withFilters(new ParametersFilter().withKey(ParametersFilterKey.Name).withValues(names))
+							.withNextToken(nextToken));
+			for (ParameterMetadata meta : result.getParameters()) {
+				metadata.put(meta.getName(), meta);
+			}
+			nextToken = result.getNextToken();
+		} while (nextToken != null && !nextToken.isEmpty());
+		return metadata;
+	}
+
+	/**
+	 * List the account's KMS aliases, if a KMS client was provided. This happens at most once per client and its
+	 * copies unless called again explicitly.
+	 */
+	void loadAliases() {
+		if (kms == null) {
+			aliases.set(NO_ALIASES);
+			return;
+		}
+		final Map<String, String> aliasesToKeys = new HashMap<>();
+		final Map<String, String> keysToAliases = new HashMap<>();
+		String marker = null;
+		do {
+			final ListAliasesResult result = kms.listAliases(new ListAliasesRequest().withMarker(marker));
+			for (AliasListEntry entry : result.getAliases()) {
+				if (entry.getTargetKeyId() != null && !entry.getTargetKeyId().isEmpty()) {
+					aliasesToKeys.put(entry.getAliasName(), entry.getTargetKeyId());
+					keysToAliases.put(entry.getTargetKeyId(), entry.getAliasName());
+				}
+			}
+			marker = Boolean.TRUE.equals(result.getTruncated()) ? result.getNextMarker() : null;
+		} while (marker != null);
+		aliases.set(new KeyAliases(aliasesToKeys, keysToAliases));
+	}
+
+	/**
+	 * Check whether the alias list was loaded, by this client or one it shares the list with.
+	 *
+	 * @return true if the list is loaded
+	 */
+	boolean isAliasesLoaded() {
+		return aliases.get() != null;
+	}
+
+	private KeyAliases getAliases() {
+		KeyAliases current = aliases.get();
+		if (current == null) {
+			synchronized (aliases) {
+				if (aliases.get() == null) {
+					loadAliases();
+				}
+				current = aliases.get();
+			}
+		}
+		return current;
+	}
+
+	String derefAlias(final String alias) {
+		final String fqAlias;
+		if (alias.startsWith("alias/")) {
+			fqAlias = alias;
+		} else {
+			fqAlias = "alias/" + alias;
+		}
+		return getAliases().aliasesToKeys.getOrDefault(fqAlias, fqAlias);
+	}
+
+	String getAliasForKeyId(final String keyId) {
+		return getAliases().keysToAliases.getOrDefault(keyId, keyId);
+	}
+
+	private static <T> T join(final CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Build an SSM parameter path or name.
+	 *
+	 * @param pathPrefix hierarchy levels 0-(N-2)
+	 * @param filename   hierarchy level N-1 (.properties, .json, or .yaml extensions will be stripped), preceded by
+	 *                   one more level for each /-delimited subdirectory
+	 * @param key        optional, hierarchy level N
+	 * @return /-delimited parameter path.
+	 */
+	public static String buildParameterPath(final String pathPrefix, final String filename, final String key) {
+		StringBuilder sb = new StringBuilder();
+		if (pathPrefix != null) {
+			sb.append(pathPrefix);
+		}
+		if (!sb.toString().endsWith("/")) {
+			sb.append("/");
+		}
+		if (filename == null) {
+			sb.append("$");
+		} else if (filename.lastIndexOf(".") > filename.lastIndexOf("/")) {
+			sb.append(filename.substring(0, filename.lastIndexOf(".")));
+		} else {
+			sb.append(filename);
+		}
+		if (key != null && !key.isEmpty()) {
+			if (!sb.toString().endsWith("/")) {
+				sb.append("/");
+			}
+			sb.append(key);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * If value is all spaces, subtract a space to reconstruct the original value for export.
+	 *
+	 * @param value parameter value.
+	 * @return unescaped value
+	 */
+	static String unescapeValueAfterGet(final String value) {
+		if (value.isEmpty()) {
+			return value;
+		}
+
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) != ' ') {
+				return value;
+			}
+		}
+
+		return value.substring(0, value.length() - 1);
+	}
+
+	/**
+	 * If value is the empty string or all spaces, add a space so the value is non-empty for SSM.
+	 *
+	 * @param value parameter value.
+	 * @return escaped value
+	 */
+	static String escapeValueBeforePut(final String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) != ' ') {
+				return value;
+			}
+		}
+
+		return value + " ";
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run SSM requests concurrently. On Java 21 the multi-release jar replaces this class with
+ * one that runs tasks on virtual threads, from {@code src/main/java21}, which must keep the same methods.
+ */
+final class WorkerPools {
+
+	private WorkerPools() {
+		// no instances
+	}
+
+	/**
+	 * Create a pool of daemon worker threads.
+	 *
+	 * @param name        thread name prefix
+	 * @param parallelism the number of threads
+	 * @return a new executor service
+	 */
+	static ExecutorService newWorkerPool(final String name, final int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism = " + parallelism);
+		}
+		final AtomicInteger counter = new AtomicInteger();
+		final ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "ssmple-" + name + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return Executors.newFixedThreadPool(parallelism, threadFactory);
+	}
+
+	/**
+	 * Create an unbounded pool of daemon threads, for short blocking calls whose callers already bound concurrency.
+	 *
+	 * @param name thread name prefix
+	 * @return a new executor service
+	 */
+	static ExecutorService newElasticPool(final String name) {
+		final AtomicInteger counter = new AtomicInteger();
+		final ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "ssmple-" + name + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return Executors.newCachedThreadPool(threadFactory);
+	}
+
+	/**
+	 * Shut down the executor and wait for running tasks to finish.
+	 *
+	 * @param executor the executor to shut down
+	 */
+	static void shutdown(final ExecutorService executor) {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Serves command lines from {@code ssmple-client} over a Unix domain socket. This is the Java 21 variant in the
+ * multi-release jar. Each connection is handled on its own virtual thread, so clients don't wait for each other, and
+ * {@link ResidentSession} runs their commands with clients kept warm in a {@link ClientCache}.
+ */
+final class ResidentServer {
+
+	private ResidentServer() {
+		// no instances
+	}
+
+	/**
+	 * Accept connections until the process is stopped. The socket is readable and writable only by its owner, and a
+	 * stale socket left by a killed server is replaced.
+	 *
+	 * @param socketFile the socket path
+	 * @throws IOException if another server is listening on the path, or it can't be bound
+	 */
+	static void serve(final File socketFile) throws IOException {
+		final Path path = socketFile.toPath();
+		final UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+		if (Files.exists(path)) {
+			if (isListening(address)) {
+				throw new IOException("Another server is already listening on " + path);
+			}
+			Files.delete(path);
+		}
+		final PrintStream log = System.err;
+		final ResidentSession session = new ResidentSession(new ClientCache(ClientCache.DEFAULT_TTL_MILLIS));
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(address);
+			socketFile.deleteOnExit();
+			if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+				Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+			}
+			log.println("serve: listening on " + path);
+			while (true) {
+				final SocketChannel connection = server.accept();
+				Thread.ofVirtual().name("ssmple-session").start(() -> {
+					try (connection) {
+						session.handle(Channels.newInputStream(connection), Channels.newOutputStream(connection));
+					} catch (IOException e) {
+						log.println("serve: " + e.getMessage());
+					}
+				});
+			}
+		}
+	}
+
+	private static boolean isListening(final UnixDomainSocketAddress address) {
+		try (SocketChannel probe = SocketChannel.open(address)) {
+			return probe.isConnected();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 Mark Adamcin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.adamcin.ssmple;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the executors that run SSM requests concurrently. This is the Java 21 variant in the multi-release jar,
+ * which runs each task on its own virtual thread, so that a large parallelism costs no more memory than a small one.
+ */
+final class WorkerPools {
+
+	private WorkerPools() {
+		// no instances
+	}
+
+	/**
+	 * Create a pool that runs up to {@code parallelism} tasks at once, each on a new virtual thread. Tasks beyond
+	 * that wait on their own virtual thread rather than in a queue, so submitting never blocks.
+	 *
+	 * @param name        thread name prefix
+	 * @param parallelism the number of tasks to run at once
+	 * @return a new executor service
+	 */
+	static ExecutorService newWorkerPool(final String name, final int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism = " + parallelism);
+		}
+		return new BoundedExecutor(newElasticPool(name), parallelism);
+	}
+
+	/**
+	 * Create an unbounded pool of virtual threads, for short blocking calls whose callers already bound concurrency.
+	 *
+	 * @param name thread name prefix
+	 * @return a new executor service
+	 */
+	static ExecutorService newElasticPool(final String name) {
+		final ThreadFactory threadFactory = Thread.ofVirtual().name("ssmple-" + name + "-", 1).factory();
+		return Executors.newThreadPerTaskExecutor(threadFactory);
+	}
+
+	/**
+	 * Shut down the executor and wait for running tasks to finish.
+	 *
+	 * @param executor the executor to shut down
+	 */
+	static void shutdown(final ExecutorService executor) {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Limits how many tasks of an unbounded executor run at once.
+	 */
+	private static final class BoundedExecutor extends AbstractExecutorService {
+		private final ExecutorService delegate;
+
+		private final Semaphore permits;
+
+		private BoundedExecutor(final ExecutorService delegate, final int parallelism) {
+			this.delegate = delegate;
+			this.permits = new Semaphore(parallelism, true);
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			delegate.execute(() -> {
+				try {
+					permits.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				try {
+					command.run();
+				} finally {
+					permits.release();
+				}
+			});
+		}
+
+		@Override
+		public void shutdown() {
+			delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+			return delegate.awaitTermination(timeout, unit);
+		}
+	}
+}